@@ -0,0 +1,165 @@
+package nand2tetris;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH benchmarks for each compiler stage on its own and for the end-to-end compileClass path, over a small, a
+ * medium and a very large generated class.
+ * <pre>
+ *   mvn -f bench/pom.xml package
+ *   java -jar bench/target/benchmarks.jar -prof gc
+ * </pre>
+ * Throughput is ops/s, plus tokens/s and instructions/s from the Rates counters; -prof gc adds the allocation
+ * rate (gc.alloc.rate) and bytes per op (gc.alloc.rate.norm). Results go back to JMH (returned or through a
+ * Blackhole), so the measured work cannot be optimized away.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class JackBenchmark {
+
+  @Param({"small", "medium", "large"})
+  public String input;
+
+  private byte[] bytes;
+  private VMCode code;
+  private int tokens;
+  // a scanned tokenizer and an engine for the engine benchmark, so only parsing and code generation are measured
+  private JackTokenizer tokenizer;
+  private VMCode engineCode;
+  private CompilationEngine engine;
+  private final WritableByteChannel discard = new WritableByteChannel() {
+    public int write(ByteBuffer src) {
+      int n = src.remaining();
+      src.position(src.limit());
+      return n;
+    }
+
+    public boolean isOpen() {
+      return true;
+    }
+
+    public void close() {
+    }
+  };
+
+  @AuxCounters(AuxCounters.Type.OPERATIONS)
+  @State(Scope.Thread)
+  public static class Rates {
+    // reported per second next to ops/s
+    public long tokens;
+    public long instructions;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+      this.tokens = 0;
+      this.instructions = 0;
+    }
+  }
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    switch (this.input) {
+      case "small":
+        this.bytes = generate(2);
+        break;
+      case "medium":
+        this.bytes = generate(60);
+        break;
+      default:
+        this.bytes = generate(2500);
+        break;
+    }
+    this.tokenizer = new JackTokenizer(ByteBuffer.wrap(this.bytes));
+    this.tokens = this.tokenizer.getTokenCount();
+    this.code = JackCompiler.compileCode(new CompilationEngine(), ByteBuffer.wrap(this.bytes));
+    this.engineCode = new VMCode();
+    this.engine = new CompilationEngine();
+  }
+
+  @Benchmark
+  public JackTokenizer tokenizer(Rates rates) throws Exception {
+    JackTokenizer jt = new JackTokenizer(ByteBuffer.wrap(this.bytes));
+    rates.tokens += jt.getTokenCount();
+    return jt;
+  }
+
+  @Benchmark
+  public VMCode engine(Rates rates) throws Exception {
+    // rewinds the already scanned tokenizer; the VMCode arrays are reused like the batch compiler does
+    this.tokenizer.seek(-1);
+    this.engineCode.clear();
+    this.engine.setUp(this.tokenizer, this.engineCode);
+    this.engine.compileClass();
+    rates.tokens += this.tokens;
+    rates.instructions += this.engineCode.size();
+    return this.engineCode;
+  }
+
+  @Benchmark
+  public void writer(Rates rates, Blackhole bh) throws Exception {
+    VMTextSerializer serializer = new VMTextSerializer(this.discard);
+    serializer.write(this.code);
+    rates.instructions += this.code.size();
+    bh.consume(serializer);
+  }
+
+  @Benchmark
+  public VMCode compile(Rates rates) throws Exception {
+    VMCode compiled = JackCompiler.compileCode(new CompilationEngine(), ByteBuffer.wrap(this.bytes));
+    new VMTextSerializer(this.discard).write(compiled);
+    rates.tokens += this.tokens;
+    rates.instructions += compiled.size();
+    return compiled;
+  }
+
+  // Private method
+
+  private static byte[] generate(int subroutines) {
+    StringBuilder sb = new StringBuilder("class Bench {\n  field int x, y;\n  static Array table;\n\n");
+    for (int i = 0; i < subroutines; i++) {
+      sb.append(String.format(
+          "  method int run%d(int a, int b) {%n"
+              + "    var int i, s;%n"
+              + "    var String t;%n"
+              + "    let i = 0;%n"
+              + "    let s = x + (y * %d);%n"
+              + "    let t = \"bench %d\";%n"
+              + "    while (i < a) {%n"
+              + "      if ((i & 1) = 0) {%n"
+              + "        let s = s + (i * b) - (a / 3);%n"
+              + "      } else {%n"
+              + "        let table[i] = s | ~b;%n"
+              + "      }%n"
+              + "      let i = i + 1;%n"
+              + "    }%n"
+              + "    do Output.printString(t);%n"
+              + "    do Output.printInt(s);%n"
+              + "    return s;%n"
+              + "  }%n%n", i, i % 7, i));
+    }
+    return sb.append("}\n").toString().getBytes(StandardCharsets.US_ASCII);
+  }
+
+}
@@ -0,0 +1,236 @@
+package nand2tetris;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generates a valid, deterministic Jack project of configurable size for benchmarking.
+ * <pre>
+ *   java -cp out nand2tetris.CorpusGenerator --out dir [--classes N] [--subroutines N] [--statements N]
+ *       [--depth N] [--strings PERCENT] [--seed N]
+ * </pre>
+ * Every class has fields, statics, a constructor, methods and functions; statements nest up to two levels, and
+ * expressions go up to depth levels deep with calls into the functions of other generated classes. The output is
+ * meant to be compiled, not run: nothing keeps divisors non-zero, indices in range or the calls acyclic.
+ */
+public class CorpusGenerator {
+
+  private static final String[] OPS = {"+", "-", "*", "/", "&", "|", "<", ">", "="};
+
+  private int classes = 20;
+  private int subroutines = 10;
+  private int statements = 12;
+  private int depth = 3;
+  private int stringPercent = 10;
+  private long seed = 1;
+
+  private Random random;
+  private StringBuilder sb;
+  private int className;
+  private List<String> scope;
+
+  public static void main(String[] args) throws Exception {
+    CorpusGenerator generator = new CorpusGenerator();
+    Path out = null;
+    for (int i = 0; i < args.length; i++) {
+      String arg = args[i];
+      if (arg.equals("--out")) {
+        out = Path.of(args[++i]);
+      } else if (!generator.option(arg, args[++i])) {
+        throw new Exception(String.format("Unknown option [%s] !!", arg));
+      }
+    }
+    if (out == null) {
+      throw new Exception("Option [--out] is required !!");
+    }
+    long bytes = generator.generate(out);
+    System.out.printf("Generated %d classes, %d bytes in %s%n", generator.classes + 1, bytes, out);
+  }
+
+  boolean option(String name, String value) {
+    // shared with the throughput harness, which forwards generator options
+    switch (name) {
+      case "--classes":
+        this.classes = Integer.parseInt(value);
+        return true;
+      case "--subroutines":
+        this.subroutines = Integer.parseInt(value);
+        return true;
+      case "--statements":
+        this.statements = Integer.parseInt(value);
+        return true;
+      case "--depth":
+        this.depth = Integer.parseInt(value);
+        return true;
+      case "--strings":
+        this.stringPercent = Integer.parseInt(value);
+        return true;
+      case "--seed":
+        this.seed = Long.parseLong(value);
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  long generate(Path dir) throws IOException {
+    Files.createDirectories(dir);
+    this.random = new Random(this.seed);
+    long bytes = 0;
+    for (int c = 0; c < this.classes; c++) {
+      bytes += write(dir, "Gen" + c, generateClass(c));
+    }
+    bytes += write(dir, "Main", generateMain());
+    return bytes;
+  }
+
+  String generateClass(int c) {
+    this.sb = new StringBuilder();
+    this.className = c;
+    line(0, "class Gen%d {", c);
+    line(1, "field int f0, f1, f2;");
+    line(1, "field Array data;");
+    line(1, "static int s0, s1;");
+    line(0, "");
+    line(1, "constructor Gen%d new(int a, int b) {", c);
+    line(2, "let f0 = a;");
+    line(2, "let f1 = b;");
+    line(2, "let f2 = a + b;");
+    line(2, "let data = Array.new(16);");
+    line(2, "return this;");
+    line(1, "}");
+    for (int s = 0; s < this.subroutines; s++) {
+      line(0, "");
+      boolean method = s % 2 == 1;
+      line(1, "%s int %s%d(int a, int b) {", method ? "method" : "function", method ? "m" : "f", s);
+      line(2, "var int i, j, k;");
+      line(2, "var Array arr;");
+      this.scope = new ArrayList<>(List.of("a", "b", "i", "j", "k"));
+      if (method) {
+        this.scope.addAll(List.of("f0", "f1", "f2"));
+      }
+      line(2, "let arr = Array.new(8);");
+      for (int n = 0; n < this.statements; n++) {
+        statement(2, 0);
+      }
+      line(2, "do arr.dispose();");
+      line(2, "return %s;", expression(this.depth));
+      line(1, "}");
+    }
+    line(0, "}");
+    return this.sb.toString();
+  }
+
+  String generateMain() {
+    this.sb = new StringBuilder();
+    line(0, "class Main {");
+    line(1, "function void main() {");
+    line(2, "var int r;");
+    for (int c = 0; c < this.classes; c++) {
+      line(2, "let r = Gen%d.f0(%d, r);", c, c);
+    }
+    line(2, "do Output.printInt(r);");
+    line(2, "return;");
+    line(1, "}");
+    line(0, "}");
+    return this.sb.toString();
+  }
+
+  // Private method
+
+  private void statement(int indent, int nesting) {
+    int kind = this.random.nextInt(nesting < 2 ? 7 : 4);
+    switch (kind) {
+      case 0:
+      case 1:
+        line(indent, "let %s = %s;", local(), expression(this.depth));
+        break;
+      case 2:
+        line(indent, "let arr[%s] = %s;", expression(1), expression(this.depth));
+        break;
+      case 3:
+        if (this.random.nextInt(100) < this.stringPercent) {
+          line(indent, "do Output.printString(\"%s\");", literal());
+        } else {
+          line(indent, "do Output.printInt(%s);", expression(this.depth));
+        }
+        break;
+      case 4:
+      case 5:
+        line(indent, "if (%s) {", expression(this.depth));
+        statement(indent + 1, nesting + 1);
+        statement(indent + 1, nesting + 1);
+        line(indent, "} else {");
+        statement(indent + 1, nesting + 1);
+        line(indent, "}");
+        break;
+      default:
+        line(indent, "let i = 0;");
+        line(indent, "while (i < %d) {", 1 + this.random.nextInt(10));
+        statement(indent + 1, nesting + 1);
+        line(indent + 1, "let i = i + 1;");
+        line(indent, "}");
+        break;
+    }
+  }
+
+  private String expression(int depth) {
+    if (depth <= 0 || this.random.nextInt(3) == 0) {
+      return term(depth);
+    }
+    return String.format("%s %s %s", term(depth - 1), OPS[this.random.nextInt(OPS.length)], term(depth - 1));
+  }
+
+  private String term(int depth) {
+    int kind = depth <= 0 ? this.random.nextInt(2) : this.random.nextInt(7);
+    switch (kind) {
+      case 0:
+        return Integer.toString(this.random.nextInt(1000));
+      case 1:
+        return this.scope.get(this.random.nextInt(this.scope.size()));
+      case 2:
+        return String.format("(%s)", expression(depth - 1));
+      case 3:
+        return String.format("%s%s", this.random.nextBoolean() ? "-" : "~", term(depth - 1));
+      case 4:
+        return String.format("arr[%s]", expression(depth - 1));
+      default:
+        // only calls with an explicit class name: functions of this or any other generated class
+        int callee = this.random.nextInt(this.classes);
+        int sub = 2 * this.random.nextInt((this.subroutines + 1) / 2);
+        if (callee == this.className || this.subroutines == 0) {
+          return local();
+        }
+        return String.format("Gen%d.f%d(%s, %s)", callee, sub, expression(depth - 1), expression(depth - 1));
+    }
+  }
+
+  private String local() {
+    return new String[]{"j", "k"}[this.random.nextInt(2)];
+  }
+
+  private String literal() {
+    StringBuilder str = new StringBuilder();
+    int length = 4 + this.random.nextInt(24);
+    for (int i = 0; i < length; i++) {
+      str.append((char) ('a' + this.random.nextInt(26)));
+    }
+    return str.toString();
+  }
+
+  private void line(int indent, String format, Object... args) {
+    this.sb.append("  ".repeat(indent)).append(String.format(format, args)).append('\n');
+  }
+
+  private static long write(Path dir, String name, String source) throws IOException {
+    byte[] bytes = source.getBytes(StandardCharsets.US_ASCII);
+    Files.write(dir.resolve(name + ".jack"), bytes);
+    return bytes.length;
+  }
+
+}
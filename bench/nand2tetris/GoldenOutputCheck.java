@@ -0,0 +1,416 @@
+package nand2tetris;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Stream;
+
+/**
+ * Golden-output check for the code generation modes: compiles a corpus in default mode and in every mode, and checks
+ * the .vm output against what each mode promises.
+ * Build and run next to the compiler sources, no dependencies needed:
+ * <pre>
+ *   javac -d out src/nand2tetris/*.java src/nand2tetris/utils/*.java bench/nand2tetris/*.java
+ *   java -cp out nand2tetris.GoldenOutputCheck [--golden bench/golden] [--update]
+ * </pre>
+ * The golden directory holds a runnable Jack program (sample/), under expected/ its default-mode .vm files and
+ * the text it prints, and a class with a syntax error (invalid/). The checks are:
+ * <ul>
+ *   <li>default mode writes exactly the expected .vm files, which pins constant folding and strength reduction;</li>
+ *   <li>--stream, -j, --pipeline, --parallel-subroutines, --ast and -i rebuilds write the same .vm files as the
+ *   build without them, in default mode and with every code-changing flag;</li>
+ *   <li>--peephole, --pool-strings, --reorder-operands, --whole-program and --inline, alone and together, print the
+ *   expected text when the program is run on VMInterpreter;</li>
+ *   <li>every push constant of every mode is in 0..32767, --reorder-operands never deepens a function's working
+ *   stack, and whole-program builds only drop functions;</li>
+ *   <li>every mode rejects invalid/ with the same error.</li>
+ * </ul>
+ * The sample program makes calls inside expressions in every form (obj.m(), Class.f(obj) and a bare m() on
+ * this), which is where the token path and the syntax tree path have drifted apart before. A generated corpus (CorpusGenerator, large enough for the streaming window and
+ * for parallel subroutines) gets the same identity checks; it is not run. The process exits with status 1 when a
+ * check fails; --update rewrites expected/ from the current default build instead.
+ */
+public class GoldenOutputCheck {
+
+  // flags that must not change the code; -j needs more than one file to matter
+  private static final String[][] SAME_CODE = {
+      {"--stream"}, {"-j", "2"}, {"--pipeline", "-j", "2"}, {"--parallel-subroutines"}, {"--ast"},
+      {"--ast", "--stream"}};
+  // flags that change the code but not what the program does
+  private static final String[][] CODEGEN = {
+      {}, {"--peephole"}, {"--pool-strings"}, {"--reorder-operands"},
+      {"--peephole", "--pool-strings", "--reorder-operands"}};
+  private static final String[][] WHOLE_PROGRAM = {
+      {"--whole-program"}, {"--inline"}, {"--inline", "--peephole", "--pool-strings", "--reorder-operands"}};
+  private static final long MAX_STEPS = 10_000_000;
+  private static final int BUILD_TIMEOUT_SECONDS = 60;
+
+  private final Path golden;
+  private final Path work;
+  private int checks;
+  private int failures;
+
+  GoldenOutputCheck(Path golden, Path work) {
+    this.golden = golden;
+    this.work = work;
+  }
+
+  public static void main(String[] args) throws Exception {
+    Path golden = Path.of("bench", "golden");
+    boolean update = false;
+    for (int i = 0; i < args.length; i++) {
+      String arg = args[i];
+      if (arg.equals("--golden")) {
+        golden = Path.of(args[++i]);
+      } else if (arg.equals("--update")) {
+        update = true;
+      } else {
+        throw new Exception(String.format("Unknown option [%s] !!", arg));
+      }
+    }
+
+    Path work = Files.createTempDirectory("golden");
+    int status = 0;
+    try {
+      GoldenOutputCheck check = new GoldenOutputCheck(golden, work);
+      if (update) {
+        check.update();
+        return;
+      }
+      try {
+        check.run();
+      } catch (Exception e) {
+        check.fail("%s", e.getMessage());
+      }
+      System.out.printf("%d checks, %d failed%n", check.checks, check.failures);
+      status = check.failures > 0 ? 1 : 0;
+    } finally {
+      delete(work);
+    }
+    // also ends a build thread that never finished
+    System.exit(status);
+  }
+
+  void update() throws Exception {
+    Path expected = this.golden.resolve("expected");
+    delete(expected);
+    Files.createDirectories(expected);
+    Path dir = build(this.golden.resolve("sample"), new String[0]);
+    for (Map.Entry<String, String> e : readCode(dir).entrySet()) {
+      Files.writeString(expected.resolve(e.getKey()), e.getValue(), StandardCharsets.UTF_8);
+    }
+    Files.writeString(expected.resolve("output.txt"), new VMInterpreter(MAX_STEPS).run(dir), StandardCharsets.UTF_8);
+    System.out.printf("Updated %s%n", expected);
+  }
+
+  void run() throws Exception {
+    Path sample = this.golden.resolve("sample");
+    Path invalid = this.golden.resolve("invalid");
+    Path expected = this.golden.resolve("expected");
+    String output = Files.readString(expected.resolve("output.txt"), StandardCharsets.UTF_8);
+    Map<String, String> golden = readCode(expected);
+
+    Path generated = this.work.resolve("generated");
+    CorpusGenerator generator = new CorpusGenerator();
+    generator.option("--classes", "3");
+    generator.option("--subroutines", "24");
+    generator.generate(generated);
+
+    Map<String, String> defaults = readCode(build(sample, new String[0]));
+    compare("default", golden, defaults);
+
+    for (String[] codegen : CODEGEN) {
+      String name = name(codegen);
+      Path dir = build(sample, codegen);
+      Map<String, String> code = readCode(dir);
+      checkRun(name, dir, output);
+      checkSameCode(sample, codegen, code);
+      checkSameCode(generated, codegen, readCode(build(generated, codegen)));
+      checkIncremental(sample, codegen, code);
+      checkRejected(invalid, codegen);
+      for (String[] same : SAME_CODE) {
+        checkRejected(invalid, concat(codegen, same));
+      }
+      if (Arrays.asList(codegen).contains("--reorder-operands")) {
+        String[] without = Arrays.stream(codegen).filter(f -> !f.equals("--reorder-operands")).toArray(String[]::new);
+        checkStackDepth(name, readCode(build(sample, without)), code);
+        checkStackDepth(name, readCode(build(generated, without)), readCode(build(generated, codegen)));
+      }
+    }
+
+    for (String[] wholeProgram : WHOLE_PROGRAM) {
+      String name = name(wholeProgram);
+      Path dir = build(sample, wholeProgram);
+      String[] separate = Arrays.stream(wholeProgram).filter(f -> !f.equals("--inline")
+          && !f.equals("--whole-program")).toArray(String[]::new);
+      checkRun(name, dir, output);
+      checkFunctions(name, readCode(build(sample, separate)), readCode(dir));
+      checkRejected(invalid, wholeProgram);
+    }
+  }
+
+  // Private method
+
+  private void checkSameCode(Path corpus, String[] codegen, Map<String, String> code) throws Exception {
+    for (String[] same : SAME_CODE) {
+      String[] flags = concat(codegen, same);
+      compare(String.format("%s on %s", name(flags), corpus.getFileName()), code, readCode(build(corpus, flags)));
+    }
+  }
+
+  private void checkIncremental(Path corpus, String[] codegen, Map<String, String> code) throws Exception {
+    // A second -i build compiles nothing and leaves the output alone. A build with other code generation flags
+    // in the same directory must not reuse the cached files: that directory starts from a default-mode build.
+    String[] flags = concat(new String[]{"-i"}, codegen);
+    Path dir = build(corpus, flags);
+    String report = compile(dir, flags);
+    check(report.contains("0 compiled"), "%s rebuild compiled again: %s", name(flags), report.trim());
+    compare(String.format("%s rebuild", name(flags)), code, readCode(dir));
+
+    Path other = build(corpus, new String[]{"-i"});
+    compile(other, flags);
+    compare(String.format("-i then %s", name(flags)), code, readCode(other));
+  }
+
+  private void checkRejected(Path corpus, String[] flags) throws Exception {
+    ByteArrayOutputStream report = new ByteArrayOutputStream();
+    String message;
+    int status;
+    try {
+      status = compile(copy(corpus), flags, report);
+      message = report.toString(StandardCharsets.UTF_8);
+    } catch (Exception e) {
+      // whole-program builds stop at the first failed file
+      status = 1;
+      message = e.getMessage();
+    }
+    check(status != 0 && message.contains("does not start a term"), "%s accepts %s: %s", name(flags),
+        corpus.getFileName(), message.trim());
+  }
+
+  private void checkRun(String name, Path dir, String expected) {
+    String actual;
+    try {
+      actual = new VMInterpreter(MAX_STEPS).run(dir);
+    } catch (Exception e) {
+      actual = e.getMessage();
+    }
+    check(actual.equals(expected), "%s prints%n  %s%ninstead of%n  %s", name, actual.replace("\n", "\n  "),
+        expected.replace("\n", "\n  "));
+  }
+
+  private void checkStackDepth(String name, Map<String, String> without, Map<String, String> with) {
+    Map<String, Integer> before = maxStackDepths(without);
+    for (Map.Entry<String, Integer> e : maxStackDepths(with).entrySet()) {
+      Integer depth = before.get(e.getKey());
+      check(depth != null && e.getValue() <= depth, "%s: %s needs a stack of %d instead of %s", name, e.getKey(),
+          e.getValue(), depth);
+    }
+  }
+
+  private void checkFunctions(String name, Map<String, String> separate, Map<String, String> code) {
+    // dead code elimination may drop functions, but never add or rename one
+    List<String> known = functions(separate);
+    List<String> kept = functions(code);
+    for (String function : kept) {
+      check(known.contains(function), "%s writes unknown function %s", name, function);
+    }
+    check(kept.size() < known.size(), "%s dropped no function", name);
+  }
+
+  private void compare(String name, Map<String, String> expected, Map<String, String> actual) {
+    this.checks += 1;
+    if (!expected.keySet().equals(actual.keySet())) {
+      fail("%s writes %s instead of %s", name, actual.keySet(), expected.keySet());
+      return;
+    }
+    for (String file : expected.keySet()) {
+      String[] a = expected.get(file).split("\n", -1);
+      String[] b = actual.get(file).split("\n", -1);
+      for (int i = 0; i < Math.max(a.length, b.length); i++) {
+        String x = i < a.length ? a[i] : "<end of file>";
+        String y = i < b.length ? b[i] : "<end of file>";
+        if (!x.equals(y)) {
+          fail("%s: %s line %d is [%s] instead of [%s]", name, file, i + 1, y, x);
+          return;
+        }
+      }
+    }
+  }
+
+  private void check(boolean ok, String format, Object... args) {
+    this.checks += 1;
+    if (!ok) {
+      fail(format, args);
+    }
+  }
+
+  private void fail(String format, Object... args) {
+    this.failures += 1;
+    System.out.printf("FAILED %s%n", String.format(format, args));
+  }
+
+  private Path build(Path corpus, String[] flags) throws Exception {
+    Path dir = copy(corpus);
+    compile(dir, flags);
+    for (Map.Entry<String, String> e : readCode(dir).entrySet()) {
+      checkConstants(String.format("%s on %s", name(flags), corpus.getFileName()), e.getKey(), e.getValue());
+    }
+    return dir;
+  }
+
+  private Path copy(Path corpus) throws Exception {
+    // a fresh copy per build, so no build sees the output or the cache of another
+    Path dir = Files.createTempDirectory(this.work, "build");
+    try (Stream<Path> files = Files.list(corpus)) {
+      for (Path file : files.filter(p -> p.toString().endsWith(".jack")).toList()) {
+        Files.copy(file, dir.resolve(file.getFileName()));
+      }
+    }
+    return dir;
+  }
+
+  private String compile(Path dir, String[] flags) throws Exception {
+    ByteArrayOutputStream report = new ByteArrayOutputStream();
+    if (compile(dir, flags, report) != 0) {
+      throw new Exception(String.format("Build with [%s] failed:%n%s !!", name(flags),
+          report.toString(StandardCharsets.UTF_8)));
+    }
+    return report.toString(StandardCharsets.UTF_8);
+  }
+
+  private int compile(Path dir, String[] flags, ByteArrayOutputStream report) throws Exception {
+    // A build that never finishes fails the check instead of hanging it. Its thread is a daemon, left behind.
+    FutureTask<Integer> build = new FutureTask<>(() -> {
+      try (PrintStream out = new PrintStream(report, true, StandardCharsets.UTF_8)) {
+        return JackCompiler.compile(CompilerOptions.parse(concat(flags, new String[]{dir.toString()})), dir, out);
+      }
+    });
+    Thread thread = new Thread(build, "golden-build");
+    thread.setDaemon(true);
+    thread.start();
+    try {
+      return build.get(BUILD_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    } catch (TimeoutException e) {
+      throw new Exception(String.format("Build with [%s] did not finish in %d s !!", name(flags),
+          BUILD_TIMEOUT_SECONDS));
+    } catch (ExecutionException e) {
+      throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+    }
+  }
+
+  private Map<String, String> readCode(Path dir) throws Exception {
+    Map<String, String> code = new TreeMap<>();
+    try (Stream<Path> files = Files.list(dir)) {
+      for (Path file : files.filter(p -> p.toString().endsWith(".vm")).toList()) {
+        code.put(file.getFileName().toString(), Files.readString(file, StandardCharsets.UTF_8));
+      }
+    }
+    return code;
+  }
+
+  private void checkConstants(String name, String file, String text) {
+    // the VM has no negative constants: -32768 has to be built, for example as 32767 + 1 or ~32767
+    this.checks += 1;
+    String[] lines = text.split("\n");
+    for (int i = 0; i < lines.length; i++) {
+      if (lines[i].startsWith("push constant ")) {
+        int value = Integer.parseInt(lines[i].substring("push constant ".length()).trim());
+        if (value < 0 || value > 32767) {
+          fail("%s: %s line %d is [%s]", name, file, i + 1, lines[i]);
+        }
+      }
+    }
+  }
+
+  private static Map<String, Integer> maxStackDepths(Map<String, String> code) {
+    // the same straight scan as VMCode.maxStackDepths(), over the written text
+    Map<String, Integer> depths = new LinkedHashMap<>();
+    for (String text : code.values()) {
+      String function = null;
+      int depth = 0;
+      for (String line : text.split("\n")) {
+        String[] words = line.trim().split("\\s+");
+        switch (words[0]) {
+          case "function":
+            function = words[1];
+            depth = 0;
+            depths.put(function, 0);
+            continue;
+          case "push":
+            depth += 1;
+            break;
+          case "pop":
+          case "add":
+          case "sub":
+          case "and":
+          case "or":
+          case "eq":
+          case "gt":
+          case "lt":
+          case "if-goto":
+          case "return":
+            depth -= 1;
+            break;
+          case "call":
+            depth += 1 - Integer.parseInt(words[2]);
+            break;
+          default:
+            break;
+        }
+        if (function != null) {
+          depths.merge(function, depth, Math::max);
+        }
+      }
+    }
+    return depths;
+  }
+
+  private static List<String> functions(Map<String, String> code) {
+    List<String> names = new ArrayList<>();
+    for (String text : code.values()) {
+      for (String line : text.split("\n")) {
+        if (line.startsWith("function ")) {
+          names.add(line.split("\\s+")[1]);
+        }
+      }
+    }
+    return names;
+  }
+
+  private static String name(String[] flags) {
+    return flags.length == 0 ? "default" : String.join(" ", flags);
+  }
+
+  private static String[] concat(String[] a, String[] b) {
+    String[] all = Arrays.copyOf(a, a.length + b.length);
+    System.arraycopy(b, 0, all, a.length, b.length);
+    return all;
+  }
+
+  private static void delete(Path path) throws IOException {
+    if (!Files.exists(path)) {
+      return;
+    }
+    try (Stream<Path> all = Files.walk(path)) {
+      for (Path p : all.sorted(Comparator.reverseOrder()).toList()) {
+        Files.delete(p);
+      }
+    }
+  }
+
+}
@@ -0,0 +1,195 @@
+package nand2tetris;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Properties;
+import java.util.stream.Stream;
+
+/**
+ * End-to-end throughput regression check: compiles a Jack corpus with the real compiler path and reports MB/s,
+ * files/s and peak heap.
+ * Build and run next to the compiler sources, no dependencies needed:
+ * <pre>
+ *   javac -d out src/nand2tetris/*.java src/nand2tetris/utils/*.java bench/nand2tetris/*.java
+ *   java -cp out nand2tetris.ThroughputHarness [--corpus dir] [--runs N] [--warmup N] [-j N] [--peephole]
+ *       [--baseline file] [--save-baseline] [--threshold 0.10] [generator options]
+ * </pre>
+ * Without --corpus a project is generated into a temporary directory with CorpusGenerator, which takes the same
+ * generator options, and deleted again at the end of the run. With --baseline the best run is compared against the stored figures, and the process exits
+ * with status 1 when MB/s drops or peak heap grows by more than the threshold; --save-baseline stores the current
+ * figures instead.
+ */
+public class ThroughputHarness {
+
+  public static void main(String[] args) throws Exception {
+    CorpusGenerator generator = new CorpusGenerator();
+    List<String> compilerArgs = new ArrayList<>();
+    Path corpus = null;
+    Path baseline = null;
+    boolean saveBaseline = false;
+    double threshold = 0.10;
+    int runs = 5;
+    int warmup = 2;
+    for (int i = 0; i < args.length; i++) {
+      String arg = args[i];
+      if (arg.equals("--corpus")) {
+        corpus = Path.of(args[++i]);
+      } else if (arg.equals("--runs")) {
+        runs = Integer.parseInt(args[++i]);
+      } else if (arg.equals("--warmup")) {
+        warmup = Integer.parseInt(args[++i]);
+      } else if (arg.equals("--baseline")) {
+        baseline = Path.of(args[++i]);
+      } else if (arg.equals("--save-baseline")) {
+        saveBaseline = true;
+      } else if (arg.equals("--threshold")) {
+        threshold = Double.parseDouble(args[++i]);
+      } else if (arg.equals("-j") || arg.equals("--jobs")) {
+        compilerArgs.add(arg);
+        compilerArgs.add(args[++i]);
+      } else if (i + 1 < args.length && generator.option(arg, args[i + 1])) {
+        i += 1;
+      } else {
+        compilerArgs.add(arg);
+      }
+    }
+    if (saveBaseline && baseline == null) {
+      throw new Exception("Option [--save-baseline] needs [--baseline] !!");
+    }
+
+    CompilerOptions options = CompilerOptions.parse(compilerArgs.toArray(new String[0]));
+
+    // a generated corpus is only there for this run
+    Path generated = null;
+    boolean regressed;
+    try {
+      if (corpus == null) {
+        generated = Files.createTempDirectory("jack-corpus");
+        corpus = generated;
+        generator.generate(corpus);
+      }
+      regressed = measure(corpus, options, runs, warmup, baseline, saveBaseline, threshold);
+    } finally {
+      if (generated != null) {
+        delete(generated);
+      }
+    }
+    if (regressed) {
+      System.exit(1);
+    }
+  }
+
+  // Private method
+
+  private static boolean measure(Path corpus, CompilerOptions options, int runs, int warmup, Path baseline,
+                                 boolean saveBaseline, double threshold) throws Exception {
+    // returns true when the figures regressed against the baseline
+    List<File> targetFiles = new ArrayList<>();
+    long bytes = 0;
+    try (Stream<Path> files = Files.list(corpus)) {
+      for (Path file : (Iterable<Path>) files.sorted()::iterator) {
+        String name = file.toString();
+        if (name.endsWith(".jack")) {
+          targetFiles.add(new File(name.substring(0, name.length() - ".jack".length())));
+          bytes += Files.size(file);
+        }
+      }
+    }
+    System.out.printf("Corpus %s: %d files, %.2f MB%n", corpus, targetFiles.size(), bytes / 1e6);
+
+    for (int i = 0; i < warmup; i++) {
+      compileAll(targetFiles, options);
+    }
+    resetPeakHeap();
+    double best = Double.MAX_VALUE;
+    for (int i = 0; i < runs; i++) {
+      double seconds = compileAll(targetFiles, options);
+      best = Math.min(best, seconds);
+      System.out.printf("run %d: %.3f s, %.2f MB/s, %.1f files/s%n", i + 1, seconds, bytes / 1e6 / seconds,
+          targetFiles.size() / seconds);
+    }
+    double mbPerSec = bytes / 1e6 / best;
+    double filesPerSec = targetFiles.size() / best;
+    long peakHeap = peakHeap();
+    System.out.printf("best: %.2f MB/s, %.1f files/s, peak heap %.1f MB%n", mbPerSec, filesPerSec, peakHeap / 1e6);
+
+    if (baseline == null) {
+      return false;
+    }
+    Properties stored = new Properties();
+    if (saveBaseline) {
+      stored.setProperty("mbPerSec", Double.toString(mbPerSec));
+      stored.setProperty("filesPerSec", Double.toString(filesPerSec));
+      stored.setProperty("peakHeapBytes", Long.toString(peakHeap));
+      try (OutputStream out = Files.newOutputStream(baseline)) {
+        stored.store(out, "ThroughputHarness baseline");
+      }
+      System.out.printf("Baseline saved to %s%n", baseline);
+      return false;
+    }
+    try (InputStream in = Files.newInputStream(baseline)) {
+      stored.load(in);
+    }
+    boolean regressed = false;
+    regressed |= check("MB/s", mbPerSec, Double.parseDouble(stored.getProperty("mbPerSec")), -threshold);
+    regressed |= check("files/s", filesPerSec, Double.parseDouble(stored.getProperty("filesPerSec")), -threshold);
+    regressed |= check("peak heap", peakHeap, Double.parseDouble(stored.getProperty("peakHeapBytes")), threshold);
+    return regressed;
+  }
+
+  private static double compileAll(List<File> targetFiles, CompilerOptions options) throws Exception {
+    long start = System.nanoTime();
+    JackCompiler.forEachFile(targetFiles, options, (engine, targetFile) -> {
+      JackCompiler.compileFile(engine, targetFile, options, null, null);
+      return null;
+    });
+    return (System.nanoTime() - start) / 1e9;
+  }
+
+  private static boolean check(String metric, double current, double stored, double threshold) {
+    // a negative threshold means lower is worse, a positive one that higher is worse
+    double change = (current - stored) / stored;
+    boolean regressed = threshold < 0 ? change < threshold : change > threshold;
+    System.out.printf("%-10s %12.2f vs baseline %12.2f (%+.1f%%)%s%n", metric, current, stored, change * 100,
+        regressed ? " REGRESSION" : "");
+    return regressed;
+  }
+
+  private static void resetPeakHeap() {
+    System.gc();
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() == MemoryType.HEAP) {
+        pool.resetPeakUsage();
+      }
+    }
+  }
+
+  private static void delete(Path dir) throws IOException {
+    try (Stream<Path> all = Files.walk(dir)) {
+      for (Path p : (Iterable<Path>) all.sorted(Comparator.reverseOrder())::iterator) {
+        Files.delete(p);
+      }
+    }
+  }
+
+  private static long peakHeap() {
+    long peak = 0;
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() == MemoryType.HEAP) {
+        peak += pool.getPeakUsage().getUsed();
+      }
+    }
+    return peak;
+  }
+
+}
@@ -0,0 +1,313 @@
+package nand2tetris;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * A small VM emulator for GoldenOutputCheck: runs the .vm files of a directory from Main.main and returns what the
+ * program printed. Only the OS calls the golden corpus makes are implemented (Math.multiply and divide,
+ * Memory.alloc, Array.new, String.new, appendChar, charAt and length, Output.printString, printInt, printChar and
+ * println, Sys.halt); every other OS call returns 0.
+ */
+public class VMInterpreter {
+
+  private static final int SP = 0;
+  private static final int LCL = 1;
+  private static final int ARG = 2;
+  private static final int THIS = 3;
+  private static final int THAT = 4;
+  private static final int STACK_BASE = 256;
+  private static final int HEAP_BASE = 2048;
+
+  private final long maxSteps;
+  private final List<String[]> code;
+  private final List<String> functionNames;
+  private final Map<String, Integer> functions;
+  private final Map<String, Integer> labels;
+  private final Map<String, Integer> statics;
+  private final int[] mem;
+  private final StringBuilder out;
+  private int heap;
+  private int pc;
+  private long steps;
+  private boolean halted;
+
+  VMInterpreter(long maxSteps) {
+    this.maxSteps = maxSteps;
+    this.code = new ArrayList<>();
+    this.functionNames = new ArrayList<>();
+    this.functions = new HashMap<>();
+    this.labels = new HashMap<>();
+    this.statics = new HashMap<>();
+    this.mem = new int[32768];
+    this.out = new StringBuilder();
+  }
+
+  public String run(Path dir) throws Exception {
+    List<Path> files;
+    try (Stream<Path> list = Files.list(dir)) {
+      files = list.filter(p -> p.toString().endsWith(".vm")).sorted().toList();
+    }
+    for (Path file : files) {
+      load(file);
+    }
+
+    this.mem[SP] = STACK_BASE;
+    this.heap = HEAP_BASE;
+    call("Main.main", 0, -1);
+    while (this.pc >= 0 && !this.halted) {
+      if (++this.steps > this.maxSteps) {
+        throw new Exception(String.format("No Sys.halt after %d instructions !!", this.maxSteps));
+      }
+      execute(this.pc++);
+    }
+    return this.out.toString();
+  }
+
+  public long getSteps() {
+    return steps;
+  }
+
+  // Private method
+
+  private void load(Path file) throws Exception {
+    String function = null;
+    for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+      int comment = line.indexOf("//");
+      String[] words = (comment < 0 ? line : line.substring(0, comment)).trim().split("\\s+");
+      if (words[0].isEmpty()) {
+        continue;
+      }
+      if (words[0].equals("function")) {
+        function = words[1];
+        this.functions.put(function, this.code.size());
+      } else if (words[0].equals("label")) {
+        this.labels.put(String.format("%s$%s", function, words[1]), this.code.size());
+      }
+      this.code.add(words);
+      this.functionNames.add(function);
+    }
+  }
+
+  private void execute(int idx) throws Exception {
+    String[] words = this.code.get(idx);
+    switch (words[0]) {
+      case "push":
+        push(words[1].equals("constant") ? Integer.parseInt(words[2]) : read(idx, words[1], words[2]));
+        break;
+      case "pop":
+        write(idx, words[1], words[2], pop());
+        break;
+      case "add":
+        push(pop() + pop());
+        break;
+      case "sub": {
+        int b = pop();
+        push(pop() - b);
+        break;
+      }
+      case "and":
+        push(pop() & pop());
+        break;
+      case "or":
+        push(pop() | pop());
+        break;
+      case "eq":
+        push(pop() == pop() ? -1 : 0);
+        break;
+      case "gt": {
+        int b = pop();
+        push(pop() > b ? -1 : 0);
+        break;
+      }
+      case "lt": {
+        int b = pop();
+        push(pop() < b ? -1 : 0);
+        break;
+      }
+      case "neg":
+        push(-pop());
+        break;
+      case "not":
+        push(~pop());
+        break;
+      case "label":
+        break;
+      case "goto":
+        this.pc = label(idx, words[1]);
+        break;
+      case "if-goto":
+        if (pop() != 0) {
+          this.pc = label(idx, words[1]);
+        }
+        break;
+      case "function":
+        for (int i = Integer.parseInt(words[2]); i > 0; i--) {
+          push(0);
+        }
+        break;
+      case "call":
+        call(words[1], Integer.parseInt(words[2]), this.pc);
+        break;
+      case "return": {
+        int frame = this.mem[LCL];
+        int ret = this.mem[frame - 5];
+        this.mem[this.mem[ARG]] = pop();
+        this.mem[SP] = this.mem[ARG] + 1;
+        this.mem[THAT] = this.mem[frame - 1];
+        this.mem[THIS] = this.mem[frame - 2];
+        this.mem[ARG] = this.mem[frame - 3];
+        this.mem[LCL] = this.mem[frame - 4];
+        this.pc = ret;
+        break;
+      }
+      default:
+        throw new Exception(String.format("Unknown VM command [%s] !!", words[0]));
+    }
+  }
+
+  private void call(String name, int nArgs, int ret) throws Exception {
+    Integer target = this.functions.get(name);
+    if (target == null) {
+      int[] args = new int[nArgs];
+      for (int i = nArgs - 1; i >= 0; i--) {
+        args[i] = pop();
+      }
+      push(os(name, args));
+      this.pc = ret;
+      return;
+    }
+    push(ret);
+    push(this.mem[LCL]);
+    push(this.mem[ARG]);
+    push(this.mem[THIS]);
+    push(this.mem[THAT]);
+    this.mem[ARG] = this.mem[SP] - nArgs - 5;
+    this.mem[LCL] = this.mem[SP];
+    this.pc = target;
+  }
+
+  private int os(String name, int[] args) throws Exception {
+    switch (name) {
+      case "Math.multiply":
+        return args[0] * args[1];
+      case "Math.divide":
+        if (args[1] == 0) {
+          throw new Exception("Division by zero !!");
+        }
+        return args[0] / args[1];
+      case "Memory.alloc":
+      case "Array.new":
+        return alloc(args[0]);
+      case "String.new": {
+        int s = alloc(args[0] + 2);
+        this.mem[s] = args[0];
+        this.mem[s + 1] = 0;
+        return s;
+      }
+      case "String.appendChar":
+        this.mem[args[0] + 2 + this.mem[args[0] + 1]] = args[1];
+        this.mem[args[0] + 1] += 1;
+        return args[0];
+      case "String.charAt":
+        return this.mem[args[0] + 2 + args[1]];
+      case "String.length":
+        return this.mem[args[0] + 1];
+      case "Output.printString":
+        for (int i = 0; i < this.mem[args[0] + 1]; i++) {
+          this.out.append((char) this.mem[args[0] + 2 + i]);
+        }
+        return 0;
+      case "Output.printInt":
+        this.out.append(args[0]);
+        return 0;
+      case "Output.printChar":
+        this.out.append((char) args[0]);
+        return 0;
+      case "Output.println":
+        this.out.append('\n');
+        return 0;
+      case "Sys.halt":
+        this.halted = true;
+        return 0;
+      default:
+        if (name.matches("(Math|Memory|Array|String|Output|Screen|Keyboard|Sys)\\..*")) {
+          return 0;
+        }
+        throw new Exception(String.format("Undefined function [%s] !!", name));
+    }
+  }
+
+  private int alloc(int size) {
+    int addr = this.heap;
+    this.heap += Math.max(size, 1);
+    return addr;
+  }
+
+  private int label(int idx, String name) throws Exception {
+    String function = this.functionNames.get(idx);
+    Integer target = this.labels.get(String.format("%s$%s", function, name));
+    if (target == null) {
+      throw new Exception(String.format("Undefined label [%s] in [%s] !!", name, function));
+    }
+    return target;
+  }
+
+  private int read(int idx, String segment, String index) throws Exception {
+    if (segment.equals("static")) {
+      return this.statics.getOrDefault(staticName(idx, index), 0);
+    }
+    return this.mem[address(segment, Integer.parseInt(index))];
+  }
+
+  private void write(int idx, String segment, String index, int value) throws Exception {
+    if (segment.equals("static")) {
+      this.statics.put(staticName(idx, index), value);
+    } else {
+      this.mem[address(segment, Integer.parseInt(index))] = value;
+    }
+  }
+
+  private String staticName(int idx, String index) {
+    // static segments are per class
+    String function = this.functionNames.get(idx);
+    return String.format("%s.%s", function.substring(0, function.indexOf('.')), index);
+  }
+
+  private int address(String segment, int index) throws Exception {
+    switch (segment) {
+      case "local":
+        return this.mem[LCL] + index;
+      case "argument":
+        return this.mem[ARG] + index;
+      case "this":
+        return this.mem[THIS] + index;
+      case "that":
+        return this.mem[THAT] + index;
+      case "pointer":
+        return THIS + index;
+      case "temp":
+        return 5 + index;
+      default:
+        throw new Exception(String.format("Unknown segment [%s] !!", segment));
+    }
+  }
+
+  private void push(int value) {
+    // every stored value is a 16-bit word
+    this.mem[this.mem[SP]] = (short) value;
+    this.mem[SP] += 1;
+  }
+
+  private int pop() {
+    this.mem[SP] -= 1;
+    return this.mem[this.mem[SP]];
+  }
+
+}
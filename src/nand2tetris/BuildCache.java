@@ -0,0 +1,111 @@
+package nand2tetris;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Manifest of the last build of one output directory.
+ * For every source it keeps the content hash of the .jack file and of the .vm file produced from it; both are
+ * only trusted while the compiler version (including output-affecting options) matches.
+ */
+public class BuildCache {
+
+  static final String MANIFEST_NAME = ".jackcache";
+  private static final String HEADER = "jackcache";
+
+  private final Path manifest;
+  private final String version;
+  private final Map<String, String[]> entries;
+  private final AtomicInteger hits;
+  private final AtomicInteger misses;
+
+  BuildCache(Path dir, String version) throws IOException {
+    this.manifest = dir.resolve(MANIFEST_NAME);
+    this.version = version;
+    this.entries = new ConcurrentHashMap<>();
+    this.hits = new AtomicInteger();
+    this.misses = new AtomicInteger();
+    load();
+  }
+
+  public boolean isUpToDate(Path source, ByteBuffer sourceBytes, Path output) throws IOException {
+    String[] entry = this.entries.get(source.getFileName().toString());
+    boolean upToDate = entry != null
+        && entry[0].equals(hash(sourceBytes))
+        && Files.isRegularFile(output)
+        && entry[1].equals(hash(Files.readAllBytes(output)));
+    if (upToDate) {
+      this.hits.incrementAndGet();
+    } else {
+      this.misses.incrementAndGet();
+    }
+    return upToDate;
+  }
+
+  public void record(Path source, ByteBuffer sourceBytes, Path output) throws IOException {
+    this.entries.put(source.getFileName().toString(),
+        new String[]{hash(sourceBytes), hash(Files.readAllBytes(output))});
+  }
+
+  public void save() throws IOException {
+    try (BufferedWriter writer = Files.newBufferedWriter(this.manifest, StandardCharsets.UTF_8)) {
+      writer.write(HEADER + "\t" + this.version + "\n");
+      for (Map.Entry<String, String[]> e : new TreeMap<>(this.entries).entrySet()) {
+        writer.write(e.getKey() + "\t" + e.getValue()[0] + "\t" + e.getValue()[1] + "\n");
+      }
+    }
+  }
+
+  public int getHits() {
+    return hits.get();
+  }
+
+  public int getMisses() {
+    return misses.get();
+  }
+
+  // Private method
+
+  private void load() throws IOException {
+    if (!Files.isRegularFile(this.manifest)) {
+      return;
+    }
+    List<String> lines = Files.readAllLines(this.manifest, StandardCharsets.UTF_8);
+    if (lines.isEmpty() || !lines.get(0).equals(HEADER + "\t" + this.version)) {
+      // written by another compiler version or option set: start over
+      return;
+    }
+    for (String line : lines.subList(1, lines.size())) {
+      String[] cols = line.split("\t");
+      if (cols.length == 3) {
+        this.entries.put(cols[0], new String[]{cols[1], cols[2]});
+      }
+    }
+  }
+
+  private static String hash(byte[] bytes) throws IOException {
+    return hash(ByteBuffer.wrap(bytes));
+  }
+
+  private static String hash(ByteBuffer bytes) throws IOException {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      digest.update(bytes.duplicate());
+      return HexFormat.of().formatHex(digest.digest());
+    } catch (NoSuchAlgorithmException e) {
+      throw new IOException(e);
+    }
+  }
+}
@@ -1,25 +1,46 @@
 package nand2tetris;
 
 import nand2tetris.utils.CommandType;
+import nand2tetris.utils.KeywordType;
+import nand2tetris.utils.NodeType;
 import nand2tetris.utils.SegmentType;
+import nand2tetris.utils.SymbolType;
+import nand2tetris.utils.SymbolValueBean;
 import nand2tetris.utils.TokenType;
 import nand2tetris.utils.VarAttributionType;
 
-import java.io.BufferedWriter;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 public class CompilationEngine {
 
-  private static final Set<String> classVarDecSet = Stream.of("static", "field").collect(Collectors.toSet());
-  private static final Set<String> subroutineDecSet = Stream.of("constructor", "function", "method", "void").collect(Collectors.toSet());
-  private static final Set<String> opSet = Stream.of("+", "-", "*", "/", "&", "|", "<", ">", "=").collect(Collectors.toSet());
-  private static final Set<String> unaryOpSet = Stream.of("-", "~").collect(Collectors.toSet());
+  private static final Set<KeywordType> classVarDecSet = EnumSet.of(KeywordType.STATIC, KeywordType.FIELD);
+  private static final Set<KeywordType> subroutineDecSet = EnumSet.of(KeywordType.CONSTRUCTOR, KeywordType.FUNCTION, KeywordType.METHOD, KeywordType.VOID);
+  private static final Set<SymbolType> opSet = EnumSet.of(SymbolType.PLUS, SymbolType.MINUS, SymbolType.ASTERISK, SymbolType.SLASH, SymbolType.AND, SymbolType.OR, SymbolType.LT, SymbolType.GT, SymbolType.EQ);
+  private static final Set<CommandType> commutativeSet = EnumSet.of(CommandType.ADD, CommandType.MUT, CommandType.AND, CommandType.OR, CommandType.EQ);
+  private static final Set<SymbolType> unaryOpSet = EnumSet.of(SymbolType.MINUS, SymbolType.TILDE);
 
-  private static final String CONSTRUCTOR = "constructor";
-  private static final String METHOD = "method";
   private static final String VOID = "void";
+  // compile-time values are 16-bit two's complement; anything outside that range means "not a constant"
+  private static final int NOT_CONSTANT = Integer.MIN_VALUE;
+  private static final int MAX_INT_CONST = 32767;
+  // inline multiplication by a constant is only used while it stays this short, Math.multiply otherwise
+  private static final int MAX_MULTIPLY_SEQUENCE = 32;
+  // temp 0 and temp 1 belong to array reads and do statements
+  private static final int MUL_X_TEMP = 2;
+  private static final int MUL_ACC_TEMP = 3;
+  // pooled literals must fit in the VM's static segment, RAM[16..255], next to the declared statics
+  private static final int MAX_STATICS = 240;
+  // parallel subroutines: classes with fewer are compiled sequentially; runs handed out per pool thread
+  private static final int MIN_PARALLEL_SUBROUTINES = 16;
+  private static final int RUNS_PER_THREAD = 4;
 
 
   private JackTokenizer jt;
@@ -27,19 +48,64 @@ public class CompilationEngine {
   private SymbolTable table;
   private String className;
   private int condIdx;
+  private final boolean stringPooling;
+  // string pooling: literal -> slot in the pool, and whether the current subroutine has taken a literal from it
+  private final Map<String, Integer> stringPool;
+  private int stringPoolBase;
+  private boolean usesStringPool;
+  private final boolean operandReordering;
+  private final boolean branchInversion;
+  private final boolean parallelSubroutines;
+  private final boolean syntaxTree;
+  // one tree arena per thread, reused for every class that thread compiles
+  private static final ThreadLocal<SyntaxTree> treeArena = ThreadLocal.withInitial(SyntaxTree::new);
 
   CompilationEngine() {
+    this(new CompilerOptions());
+  }
+
+  CompilationEngine(CompilerOptions options) {
     this.condIdx = 0;
+    this.stringPooling = options.isStringPooling();
+    this.stringPool = new LinkedHashMap<>();
+    this.operandReordering = options.isOperandReordering();
+    this.branchInversion = options.isPeephole();
+    this.parallelSubroutines = options.isParallelSubroutines();
+    this.syntaxTree = options.isSyntaxTree();
+  }
+
+  private CompilationEngine(CompilationEngine parent, JackTokenizer jt, VMCode code, int condIdx,
+                            Map<String, Integer> stringPool) {
+    // compiles a run of the parent's subroutines, starting from the parent's state at the first of them
+    this.jt = jt;
+    this.writer = new VMWritter(code);
+    this.table = parent.table.copy();
+    this.className = parent.className;
+    this.condIdx = condIdx;
+    this.stringPooling = parent.stringPooling;
+    this.stringPool = new LinkedHashMap<>(stringPool);
+    this.stringPoolBase = parent.stringPoolBase;
+    this.operandReordering = parent.operandReordering;
+    this.branchInversion = parent.branchInversion;
+    this.parallelSubroutines = false;
+    this.syntaxTree = false;
   }
 
-  CompilationEngine setUp(JackTokenizer jt, BufferedWriter bWriter) {
+  CompilationEngine setUp(JackTokenizer jt, VMCode code) {
     this.jt = jt;
-    this.writer = new VMWritter(bWriter);
+    this.writer = new VMWritter(code);
     this.table = new SymbolTable();
+    // labels are numbered per class so the output does not depend on which files this engine compiled before
+    this.condIdx = 0;
+    this.stringPool.clear();
     return this;
   }
 
   public void compileClass() throws Exception {
+    if (this.syntaxTree && this.jt.isSeekable()) {
+      compileClass(new TreeBuilder(treeArena.get()).build(this.jt));
+      return;
+    }
     this.jt.advance();
 
     keywordGetter(); // class
@@ -51,33 +117,68 @@ public class CompilationEngine {
       compileClassVarDec();
     }
 
+    // pooled literals live in the statics after the declared ones
+    this.stringPoolBase = this.table.varCount(VarAttributionType.STATIC);
+
     // class subroutine declaration
-    while (this.jt.getTokenType() == TokenType.KEY_WORD && subroutineDecSet.contains(jt.getKeyword())) {
-      compileSubroutine();
+    if (!this.parallelSubroutines || !compileSubroutinesInParallel()) {
+      while (this.jt.getTokenType() == TokenType.KEY_WORD && subroutineDecSet.contains(jt.getKeyword())) {
+        compileSubroutine();
+      }
     }
 
     symbolGetter(); // }
 
+    if (!this.stringPool.isEmpty()) {
+      stringPoolInitWriter();
+    }
+
+  }
+
+  public void compileClass(SyntaxTree tree) throws Exception {
+    // Generates the class from its syntax tree: the nodes give the structure and the tokenizer is only used to
+    // read the text of TOKEN leaves. The code is the same as the token-level methods write.
+    int node = tree.getNextSibling(tree.getFirstChild(tree.getRoot())); // class
+    this.className = identifierAt(tree, node); // Main
+
+    boolean subroutines = false;
+    for (node = tree.getNextSibling(node); node != SyntaxTree.NONE; node = tree.getNextSibling(node)) {
+      if (tree.getKind(node) == NodeType.CLASS_VAR_DEC) {
+        compileClassVarDec(tree, node);
+      } else if (tree.getKind(node) == NodeType.SUBROUTINE_DEC) {
+        if (!subroutines) {
+          // pooled literals live in the statics after the declared ones
+          this.stringPoolBase = this.table.varCount(VarAttributionType.STATIC);
+          subroutines = true;
+        }
+        compileSubroutine(tree, node);
+      }
+    }
+
+    if (!this.stringPool.isEmpty()) {
+      stringPoolInitWriter();
+    }
+
   }
 
   public void compileClassVarDec() throws Exception {
     // Example: static boolean varName;
 
     while (this.jt.getTokenType() == TokenType.KEY_WORD && classVarDecSet.contains(this.jt.getKeyword())) {
+      VarAttributionType kind = keywordGetter() == KeywordType.STATIC ? VarAttributionType.STATIC : VarAttributionType.FIELD; // static/field
       String
-          kwd = keywordGetter(), // static/field
           type = returnTypeGetter(), //$Var.type
           name = identifierGetter();  // $Var.name
 
       if (this.table.kindOf(name) == VarAttributionType.NONE) {
-        this.table.define(name, type, VarAttributionType.getEnum(kwd));
+        this.table.define(name, type, kind);
       }
 
-      while (this.jt.getTokenType() == TokenType.SYMBOL && ",".equals(this.jt.getSymbol())) {
+      while (this.jt.isSymbol(SymbolType.COMMA)) {
         symbolGetter(); // ,
         name = identifierGetter(); //$Var.name
         if (this.table.kindOf(name) == VarAttributionType.NONE) {
-          this.table.define(name, type, VarAttributionType.getEnum(kwd));
+          this.table.define(name, type, kind);
         }
 
       }
@@ -90,14 +191,15 @@ public class CompilationEngine {
   public void compileSubroutine() throws Exception {
 
     int nLocalVars = 0;
-    String subroutineName, subroutineType, returnType;
+    KeywordType subroutineType;
+    String subroutineName, returnType;
     this.table.startSubroutine();
 
     subroutineType = keywordGetter(); // constructor or etc...
     returnType = returnTypeGetter(); // $Subroutine.returnType
     subroutineName = identifierGetter(); // $Subroutine.name
 
-    if (subroutineType.equals("method")) {
+    if (subroutineType == KeywordType.METHOD) {
       this.table.define("this_ptr", "INT", VarAttributionType.ARG);
     }
 
@@ -110,36 +212,22 @@ public class CompilationEngine {
 
     // VarDec*
 
-    if (this.jt.getTokenType() == TokenType.KEY_WORD && "var".equals(this.jt.getKeyword())) {
+    if (this.jt.isKeyword(KeywordType.VAR)) {
       nLocalVars = compileVarDec();
 
     }
 
-    this.writer.writeFunction(this.className + "." + subroutineName, nLocalVars);
-
-    if (subroutineType.equals(CONSTRUCTOR)) {
-      this.writer.writeAlloc(this.table.varCount(VarAttributionType.FIELD));
-      this.writer.writePop(SegmentType.POINTER, 0);
-
-    }
-    if (subroutineType.equals(METHOD)) {
-      this.writer.writePush(SegmentType.ARG, 0);
-      this.writer.writePop(SegmentType.POINTER, 0);
-
-    }
+    int bodyMark = subroutineOpenWriter(subroutineType, subroutineName, nLocalVars);
 
     // statements
-    if (this.jt.getTokenType() != TokenType.SYMBOL || "}".equals(this.jt.getSymbol())) {
+    if (this.jt.getTokenType() != TokenType.SYMBOL || this.jt.isSymbol(SymbolType.R_BRACE)) {
       compileStatements();
     }
 
     // closing
     symbolGetter(); // }
 
-    if (returnType.equals(VOID)) {
-      this.writer.writePush(SegmentType.CONST, 0);
-    }
-    this.writer.writeReturn();
+    subroutineCloseWriter(returnType, bodyMark);
 
   }
 
@@ -147,7 +235,7 @@ public class CompilationEngine {
   public void compileParameterList() throws Exception {
     //  Args of subroutines
 
-    while (this.jt.getTokenType() != TokenType.SYMBOL || !")".equals(this.jt.getSymbol())) {
+    while (!this.jt.isSymbol(SymbolType.R_PAREN)) {
       String
           type = returnTypeGetter(),
           name = identifierGetter();
@@ -156,7 +244,7 @@ public class CompilationEngine {
         this.table.define(name, type, VarAttributionType.ARG);
       }
 
-      if (this.jt.getTokenType() == TokenType.SYMBOL && ",".equals(this.jt.getSymbol())) {
+      if (this.jt.isSymbol(SymbolType.COMMA)) {
         symbolGetter(); // ,
       }
     }
@@ -167,9 +255,9 @@ public class CompilationEngine {
     int nLocalVar = 0;
     // Example: var int i, j;
 
-    while (this.jt.getTokenType() == TokenType.KEY_WORD && "var".equals(this.jt.getKeyword())) {
+    while (this.jt.isKeyword(KeywordType.VAR)) {
+      keywordGetter(); // "var"
       String
-          kwd = keywordGetter(), // "var"
           type = returnTypeGetter(), // $var.type
           name = identifierGetter(); // $var.name
 
@@ -180,7 +268,7 @@ public class CompilationEngine {
       nLocalVar += 1;
 
       // (',' varName)*
-      while (this.jt.getTokenType() == TokenType.SYMBOL && ",".equals(this.jt.getSymbol())) {
+      while (this.jt.isSymbol(SymbolType.COMMA)) {
         symbolGetter(); // ,
         name = identifierGetter(); // varName
         if (this.table.kindOf(name) == VarAttributionType.NONE) {
@@ -195,21 +283,21 @@ public class CompilationEngine {
   }
 
   public void compileStatements() throws Exception {
-    while (this.jt.getTokenType() != TokenType.SYMBOL || !("}".equals(this.jt.getSymbol()))) {
+    while (!this.jt.isSymbol(SymbolType.R_BRACE)) {
       switch (this.jt.getKeyword()) {
-        case "let":
+        case LET:
           compileLet();
           break;
-        case "if":
+        case IF:
           compileIf();
           break;
-        case "while":
+        case WHILE:
           compileWhile();
           break;
-        case "do":
+        case DO:
           compileDo();
           break;
-        case "return":
+        case RETURN:
           compileReturn();
           break;
       }
@@ -222,7 +310,7 @@ public class CompilationEngine {
     boolean isArray = false;
     keywordGetter(); // let
     varName = identifierGetter(); // $var.name
-    if (this.jt.getTokenType() == TokenType.SYMBOL && "[".equals(this.jt.getSymbol())) {
+    if (this.jt.isSymbol(SymbolType.L_BRACKET)) {
       isArray = true;
       varPushWriter(varName);
       symbolGetter(); // [
@@ -244,61 +332,36 @@ public class CompilationEngine {
   }
 
   public void compileIf() throws Exception {
-
-    String trueLabel, falseLabel, ifEndLabel;
-    this.condIdx += 1;
-
-    keywordGetter(); // if
-    symbolGetter();  // (
-    compileExpression();
-    symbolGetter(); // )
-
-    trueLabel = String.format("L_ifT%d", this.condIdx);
-    falseLabel = String.format("L_ifF%d", this.condIdx);
-    ifEndLabel = String.format("L_ifEND%d", this.condIdx);
-
-    this.writer.writeArithmetic(CommandType.NOT);
-    this.writer.writeIf(falseLabel); // if false is correct, then jump to falseLabel over true label
-
-    symbolGetter(); // {
-    this.writer.writeLabel(trueLabel);
-    compileStatements();
-    this.writer.writeGoto(ifEndLabel);
-    symbolGetter(); // }
-    this.writer.writeLabel(falseLabel);
-    if (this.jt.getTokenType() == TokenType.KEY_WORD && "else".equals(this.jt.getKeyword())) {
-      keywordGetter(); //else
+    ifWriter(() -> {
+      keywordGetter(); // if
+      symbolGetter();  // (
+      compileExpression();
+      symbolGetter(); // )
+    }, () -> {
       symbolGetter(); // {
       compileStatements();
       symbolGetter(); // }
-
-    }
-
-    this.writer.writeLabel(ifEndLabel);
-
+    }, () -> {
+      if (this.jt.isKeyword(KeywordType.ELSE)) {
+        keywordGetter(); //else
+        symbolGetter(); // {
+        compileStatements();
+        symbolGetter(); // }
+      }
+    });
   }
 
   public void compileWhile() throws Exception {
-    this.condIdx += 1;
-    String whileBeginLabel = String.format("L_WB%d", this.condIdx),
-        whileEndLabel = String.format("L_WE%d", this.condIdx);
-
-    this.writer.writeLabel(whileBeginLabel);
-    keywordGetter(); // while
-    symbolGetter();  // (
-    compileExpression();
-    symbolGetter();  // )
-
-
-    this.writer.writeArithmetic(CommandType.NOT);
-    this.writer.writeIf(whileEndLabel);
-    symbolGetter();  // {
-    compileStatements();
-    symbolGetter();  // }
-    this.writer.writeGoto(whileBeginLabel);
-
-    this.writer.writeLabel(whileEndLabel);
-
+    whileWriter(() -> {
+      keywordGetter(); // while
+      symbolGetter();  // (
+      compileExpression();
+      symbolGetter();  // )
+    }, () -> {
+      symbolGetter();  // {
+      compileStatements();
+      symbolGetter();  // }
+    });
   }
 
   public void compileDo() throws Exception {
@@ -315,107 +378,92 @@ public class CompilationEngine {
   public void compileReturn() throws Exception {
 
     keywordGetter(); // return
-    if (this.jt.getTokenType() != TokenType.SYMBOL || !(";".equals(this.jt.getSymbol()))) {
+    if (!this.jt.isSymbol(SymbolType.SEMICOLON)) {
       compileExpression();
     }
     symbolGetter(); //;
 
   }
 
-  public void compileExpression() throws Exception {
+  public int compileExpression() throws Exception {
+    // Returns the value of the expression when it is a compile-time constant, NOT_CONSTANT otherwise.
+    // Constant operands are emitted as usual; once both sides of an operator turn out constant, their code is
+    // rewound and replaced by the folded value.
 
-    compileTerm();
+    int mark = this.writer.mark();
+    int value = compileTerm();
     while (this.jt.getTokenType() == TokenType.SYMBOL && opSet.contains(this.jt.getSymbol())) {
       CommandType ct = CommandType.getEnum(symbolGetter()); // Expect: Arithmetic op
-      compileTerm();
-      this.writer.writeArithmetic(ct);
+      int rightMark = this.writer.mark();
+      int right = compileTerm();
+      value = binaryWriter(ct, value, right, mark, rightMark);
     }
+    return value;
   }
 
-  public void compileTerm() throws Exception {
+  public int compileTerm() throws Exception {
 
     TokenType tt = this.jt.getTokenType();
+    int value = NOT_CONSTANT;
 
     if (tt == TokenType.INT_CONST) {
-      this.writer.writePush(SegmentType.CONST, intConstGetter());
+      int intVal = intConstGetter();
+      this.writer.writePush(SegmentType.CONST, intVal);
+      if (intVal <= MAX_INT_CONST) {
+        value = intVal;
+      }
 
     } else if (tt == TokenType.STRING_CONST) {
-      this.writer.writeString(stringConstGetter());
-
-    } else if (tt == TokenType.KEY_WORD) {
-      String kwd = keywordGetter();
-      if (kwd.equals("false") || kwd.equals("null")) {
-        this.writer.writePush(SegmentType.CONST, 0);
-
-      } else if (kwd.equals("true")) {
-        this.writer.writePush(SegmentType.CONST, 0);
-        this.writer.writeArithmetic(CommandType.NOT);
-
-      } else if (kwd.equals("this")) {
-        this.writer.writePush(SegmentType.POINTER, 0);
-
+      if (this.stringPooling) {
+        pooledStringWriter(stringConstGetter());
       } else {
-        throw new Exception("Unreachable!!");
+        this.writer.writeString(stringConstGetter());
       }
 
+    } else if (tt == TokenType.KEY_WORD) {
+      value = keywordConstantWriter(keywordGetter());
+
     } else if (tt == TokenType.IDENTIFIER) {
       String varName = identifierGetter();
-      VarAttributionType varKind = this.table.kindOf(varName);
-      varPushWriter(varName);
-      if (this.jt.getTokenType() == TokenType.SYMBOL && "[".equals(this.jt.getSymbol())) {
+      if (this.jt.isSymbol(SymbolType.L_BRACKET)) {
         // Array patterns
+        varPushWriter(varName);
         symbolGetter(); // [
-        this.writer.writePush(SegmentType.POINTER, 1);
-        this.writer.writePop(SegmentType.TEMP, 0);
-        compileExpression();
-        this.writer.writeArithmetic(CommandType.ADD);
-        this.writer.writePop(SegmentType.POINTER, 1);
-        this.writer.writePush(SegmentType.THAT, 0);
-        this.writer.writePop(SegmentType.TEMP, 1);
-        this.writer.writePush(SegmentType.TEMP, 0);
-        this.writer.writePop(SegmentType.POINTER, 1);
-        this.writer.writePush(SegmentType.TEMP, 1);
+        arrayReadWriter(() -> compileExpression());
         symbolGetter(); //]
-      } else if (this.jt.getTokenType() == TokenType.SYMBOL && "(".equals(this.jt.getSymbol())) {
-        // Subroutine patterns
-        symbolGetter(); // (
-        subroutineWriter(varName);
-        symbolGetter(); // )
-      } else if (this.jt.getTokenType() == TokenType.SYMBOL && ".".equals(this.jt.getSymbol())) {
-        // Method Pattern
+      } else if (this.jt.isSymbol(SymbolType.L_PAREN) || this.jt.isSymbol(SymbolType.DOT)) {
+        // Subroutine and method patterns: the receiver is pushed by the call, as in compileDo
         subroutineWriter(varName);
+      } else {
+        varPushWriter(varName);
       }
     } else if (tt == TokenType.SYMBOL) {
-      if ("(".equals(this.jt.getSymbol())) {
+      if (this.jt.isSymbol(SymbolType.L_PAREN)) {
         symbolGetter(); // (
-        compileExpression();
+        value = compileExpression();
         symbolGetter(); //)
       } else if (unaryOpSet.contains(this.jt.getSymbol())) {
-        String symbol = symbolGetter();
-        CommandType ct = null;
-        compileTerm();
-        if (symbol.equals("-")) {
-          ct = CommandType.NEQ;
-        } else if (symbol.equals("~")) {
-          ct = CommandType.NOT;
-        } else {
-          throw new Exception();
-        }
-        this.writer.writeArithmetic(ct);
+        SymbolType symbol = symbolGetter();
+        int mark = this.writer.mark();
+        int operand = compileTerm();
+        value = unaryWriter(symbol, operand, mark);
+      } else {
+        throw new Exception(String.format("This token [%s] does not start a term !!", this.jt.getTagType()));
       }
     } else {
-      throw new Exception();
+      throw new Exception(String.format("This token [%s] does not start a term !!", this.jt.getTagType()));
     }
+    return value;
 
   }
 
   public int compileExpressionList() throws Exception {
     int nExpression = 0;
 
-    while (this.jt.getTokenType() != TokenType.SYMBOL || !(")".equals(this.jt.getSymbol()))) {
+    while (!this.jt.isSymbol(SymbolType.R_PAREN)) {
       compileExpression();
       nExpression += 1;
-      if (this.jt.getTokenType() == TokenType.SYMBOL && (",".equals(this.jt.getSymbol()))) {
+      if (this.jt.isSymbol(SymbolType.COMMA)) {
         symbolGetter();
       }
     }
@@ -433,16 +481,16 @@ public class CompilationEngine {
     // return type: primitives and identifier
     String ret;
     if (jt.getTokenType() == TokenType.KEY_WORD) {
-      ret = keywordGetter(); // $Subroutine.type(primitive)
+      ret = keywordGetter().getKeyword(); // $Subroutine.type(primitive)
     } else {
       ret = identifierGetter(); // $Subroutine.type(user definition)
     }
     return ret;
   }
 
-  private String keywordGetter() throws Exception {
+  private KeywordType keywordGetter() throws Exception {
     // keyword: class, constructor and etc...
-    String ret = this.jt.getKeyword();
+    KeywordType ret = this.jt.getKeyword();
     this.jt.advance();
     return ret;
   }
@@ -454,9 +502,9 @@ public class CompilationEngine {
     return ret;
   }
 
-  private String symbolGetter() throws Exception {
+  private SymbolType symbolGetter() throws Exception {
     // symbol: ;,{,},{ and etc...
-    String ret = this.jt.getSymbol();
+    SymbolType ret = this.jt.getSymbol();
     this.jt.advance();
     return ret;
   }
@@ -470,79 +518,806 @@ public class CompilationEngine {
 
   private String stringConstGetter() throws Exception {
     // StringConstant:
-    String ret = this.jt.getStringVal().substring(1, this.jt.getStringVal().length() - 1);
+    String ret = this.jt.getStringVal();
     this.jt.advance();
     return ret;
   }
 
+  private void compileClassVarDec(SyntaxTree tree, int node) throws Exception {
+    // ('static' | 'field') type varName (',' varName)* ';'
+    int child = tree.getFirstChild(node);
+    VarAttributionType kind = keywordAt(tree, child) == KeywordType.STATIC ? VarAttributionType.STATIC : VarAttributionType.FIELD;
+    child = tree.getNextSibling(child);
+    String type = typeAt(tree, child);
+    // every name is followed by ',' or ';'
+    for (child = tree.getNextSibling(child); child != SyntaxTree.NONE; child = tree.getNextSibling(tree.getNextSibling(child))) {
+      String name = identifierAt(tree, child);
+      if (this.table.kindOf(name) == VarAttributionType.NONE) {
+        this.table.define(name, type, kind);
+      }
+    }
+  }
+
+  private void compileSubroutine(SyntaxTree tree, int node) throws Exception {
+    // kind type name '(' parameterList ')' subroutineBody
+    this.table.startSubroutine();
+    int child = tree.getFirstChild(node);
+    KeywordType subroutineType = keywordAt(tree, child);
+    child = tree.getNextSibling(child);
+    String returnType = typeAt(tree, child);
+    child = tree.getNextSibling(child);
+    String subroutineName = identifierAt(tree, child);
+
+    if (subroutineType == KeywordType.METHOD) {
+      this.table.define("this_ptr", "INT", VarAttributionType.ARG);
+    }
+
+    child = tree.getNextSibling(tree.getNextSibling(child)); // parameterList
+    for (int param = tree.getFirstChild(child); param != SyntaxTree.NONE; param = tree.getNextSibling(param)) {
+      String type = typeAt(tree, param);
+      param = tree.getNextSibling(param);
+      String name = identifierAt(tree, param);
+      if (this.table.kindOf(name) == VarAttributionType.NONE) {
+        this.table.define(name, type, VarAttributionType.ARG);
+      }
+      if (tree.getNextSibling(param) != SyntaxTree.NONE) {
+        param = tree.getNextSibling(param); // ,
+      }
+    }
+
+    child = tree.getNextSibling(tree.getNextSibling(child)); // subroutineBody
+    int nLocalVars = 0;
+    int part = tree.getNextSibling(tree.getFirstChild(child)); // after {
+    for (; tree.getKind(part) == NodeType.VAR_DEC; part = tree.getNextSibling(part)) {
+      nLocalVars += compileVarDec(tree, part);
+    }
+
+    int bodyMark = subroutineOpenWriter(subroutineType, subroutineName, nLocalVars);
+    compileStatements(tree, part);
+    subroutineCloseWriter(returnType, bodyMark);
+  }
+
+  private int compileVarDec(SyntaxTree tree, int node) throws Exception {
+    // 'var' type varName (',' varName)* ';'
+    int nLocalVar = 0;
+    int child = tree.getNextSibling(tree.getFirstChild(node));
+    String type = typeAt(tree, child);
+    for (child = tree.getNextSibling(child); child != SyntaxTree.NONE; child = tree.getNextSibling(tree.getNextSibling(child))) {
+      String name = identifierAt(tree, child);
+      if (this.table.kindOf(name) == VarAttributionType.NONE) {
+        this.table.define(name, type, VarAttributionType.LOCAL);
+      }
+      nLocalVar += 1;
+    }
+    return nLocalVar;
+  }
+
+  private void compileStatements(SyntaxTree tree, int node) throws Exception {
+    for (int child = tree.getFirstChild(node); child != SyntaxTree.NONE; child = tree.getNextSibling(child)) {
+      switch (tree.getKind(child)) {
+        case LET_STATEMENT:
+          compileLet(tree, child);
+          break;
+        case IF_STATEMENT:
+          compileIf(tree, child);
+          break;
+        case WHILE_STATEMENT:
+          compileWhile(tree, child);
+          break;
+        case DO_STATEMENT:
+          compileDo(tree, child);
+          break;
+        case RETURN_STATEMENT:
+          compileReturn(tree, child);
+          break;
+        default:
+          throw new Exception(String.format("Unexpected [%s] node in statements !!", tree.getKind(child).getTag()));
+      }
+    }
+  }
+
+  private void compileLet(SyntaxTree tree, int node) throws Exception {
+    // 'let' varName ('[' expression ']')? '=' expression ';'
+    int child = tree.getNextSibling(tree.getFirstChild(node));
+    String varName = identifierAt(tree, child);
+    child = tree.getNextSibling(child);
+    boolean isArray = isSymbolAt(tree, child, SymbolType.L_BRACKET);
+    if (isArray) {
+      varPushWriter(varName);
+      child = tree.getNextSibling(child);
+      compileExpression(tree, child);
+      child = tree.getNextSibling(tree.getNextSibling(child)); // =
+      this.writer.writeArithmetic(CommandType.ADD);
+      this.writer.writePop(SegmentType.POINTER, 1);
+    }
+
+    compileExpression(tree, tree.getNextSibling(child));
+    if (isArray) {
+      this.writer.writePop(SegmentType.THAT, 0);
+    } else {
+      varPopWriter(varName);
+    }
+  }
+
+  private void compileIf(SyntaxTree tree, int node) throws Exception {
+    // 'if' '(' expression ')' '{' statements '}' ('else' '{' statements '}')?
+    int condition = tree.getNextSibling(tree.getNextSibling(tree.getFirstChild(node)));
+    int thenPart = tree.getNextSibling(tree.getNextSibling(tree.getNextSibling(condition)));
+    int elseKeyword = tree.getNextSibling(tree.getNextSibling(thenPart));
+    int elsePart = elseKeyword == SyntaxTree.NONE ? SyntaxTree.NONE : tree.getNextSibling(tree.getNextSibling(elseKeyword));
+    ifWriter(() -> compileExpression(tree, condition), () -> compileStatements(tree, thenPart), () -> {
+      if (elsePart != SyntaxTree.NONE) {
+        compileStatements(tree, elsePart);
+      }
+    });
+  }
+
+  private void compileWhile(SyntaxTree tree, int node) throws Exception {
+    // 'while' '(' expression ')' '{' statements '}'
+    int condition = tree.getNextSibling(tree.getNextSibling(tree.getFirstChild(node)));
+    int body = tree.getNextSibling(tree.getNextSibling(tree.getNextSibling(condition)));
+    whileWriter(() -> compileExpression(tree, condition), () -> compileStatements(tree, body));
+  }
+
+  private void compileDo(SyntaxTree tree, int node) throws Exception {
+    compileSubroutineCall(tree, tree.getNextSibling(tree.getFirstChild(node)));
+    this.writer.writePop(SegmentType.TEMP, 0); // Because the returnType is void;
+  }
+
+  private void compileReturn(SyntaxTree tree, int node) throws Exception {
+    int child = tree.getNextSibling(tree.getFirstChild(node));
+    if (tree.getKind(child) == NodeType.EXPRESSION) {
+      compileExpression(tree, child);
+    }
+  }
+
+  private int compileExpression(SyntaxTree tree, int node) throws Exception {
+    // term (op term)*, folded and reduced like compileExpression()
+    int mark = this.writer.mark();
+    int child = tree.getFirstChild(node);
+    int value = compileTerm(tree, child);
+    for (child = tree.getNextSibling(child); child != SyntaxTree.NONE; child = tree.getNextSibling(child)) {
+      CommandType ct = CommandType.getEnum(symbolAt(tree, child));
+      child = tree.getNextSibling(child);
+      int rightMark = this.writer.mark();
+      int right = compileTerm(tree, child);
+      value = binaryWriter(ct, value, right, mark, rightMark);
+    }
+    return value;
+  }
+
+  private int compileTerm(SyntaxTree tree, int node) throws Exception {
+    int child = tree.getFirstChild(node);
+    int next = tree.getNextSibling(child);
+    this.jt.seek(tree.getToken(child));
+    switch (this.jt.getTokenType()) {
+      case INT_CONST:
+        int intVal = this.jt.getIntVal();
+        this.writer.writePush(SegmentType.CONST, intVal);
+        return intVal <= MAX_INT_CONST ? intVal : NOT_CONSTANT;
+      case STRING_CONST:
+        if (this.stringPooling) {
+          pooledStringWriter(this.jt.getStringVal());
+        } else {
+          this.writer.writeString(this.jt.getStringVal());
+        }
+        return NOT_CONSTANT;
+      case KEY_WORD:
+        return keywordConstantWriter(this.jt.getKeyword());
+      case IDENTIFIER:
+        if (next == SyntaxTree.NONE) {
+          varPushWriter(this.jt.getIdentifier());
+        } else if (isSymbolAt(tree, next, SymbolType.L_BRACKET)) {
+          varPushWriter(identifierAt(tree, child));
+          arrayReadWriter(() -> compileExpression(tree, tree.getNextSibling(next)));
+        } else {
+          compileSubroutineCall(tree, child);
+        }
+        return NOT_CONSTANT;
+      default:
+        if (this.jt.isSymbol(SymbolType.L_PAREN)) {
+          return compileExpression(tree, next);
+        }
+        SymbolType symbol = this.jt.getSymbol();
+        int mark = this.writer.mark();
+        int operand = compileTerm(tree, next);
+        return unaryWriter(symbol, operand, mark);
+    }
+  }
+
+  private void compileSubroutineCall(SyntaxTree tree, int node) throws Exception {
+    // subroutineName '(' expressionList ')' | (className | varName) '.' subroutineName '(' expressionList ')',
+    // starting at the first name
+    String name = identifierAt(tree, node), methodName = null;
+    node = tree.getNextSibling(node);
+    if (isSymbolAt(tree, node, SymbolType.DOT)) {
+      node = tree.getNextSibling(node);
+      methodName = identifierAt(tree, node);
+      node = tree.getNextSibling(node);
+    }
+    boolean isPushPointer = methodName == null || this.table.resolve(name) != null;
+    String callName = callTargetWriter(name, methodName);
+    int nParam = compileExpressionList(tree, tree.getNextSibling(node));
+    if (isPushPointer) {
+      nParam += 1;
+    }
+    this.writer.writeCall(callName, nParam);
+  }
+
+  private int compileExpressionList(SyntaxTree tree, int node) throws Exception {
+    int nExpression = 0;
+    for (int child = tree.getFirstChild(node); child != SyntaxTree.NONE; child = tree.getNextSibling(child)) {
+      if (tree.getKind(child) == NodeType.EXPRESSION) {
+        compileExpression(tree, child);
+        nExpression += 1;
+      }
+    }
+    return nExpression;
+  }
+
+  private String identifierAt(SyntaxTree tree, int leaf) throws Exception {
+    this.jt.seek(tree.getToken(leaf));
+    return this.jt.getIdentifier();
+  }
+
+  private KeywordType keywordAt(SyntaxTree tree, int leaf) throws Exception {
+    this.jt.seek(tree.getToken(leaf));
+    return this.jt.getKeyword();
+  }
+
+  private SymbolType symbolAt(SyntaxTree tree, int leaf) throws Exception {
+    this.jt.seek(tree.getToken(leaf));
+    return this.jt.getSymbol();
+  }
+
+  private boolean isSymbolAt(SyntaxTree tree, int node, SymbolType st) {
+    if (node == SyntaxTree.NONE || tree.getKind(node) != NodeType.TOKEN) {
+      return false;
+    }
+    this.jt.seek(tree.getToken(node));
+    return this.jt.isSymbol(st);
+  }
+
+  private String typeAt(SyntaxTree tree, int leaf) throws Exception {
+    // primitives and class names, as returnTypeGetter()
+    this.jt.seek(tree.getToken(leaf));
+    return this.jt.getTokenType() == TokenType.KEY_WORD ? this.jt.getKeyword().getKeyword() : this.jt.getIdentifier();
+  }
+
+  private boolean compileSubroutinesInParallel() throws Exception {
+    // Pre-scans the subroutines, compiles contiguous runs of them on the common fork-join pool and appends the
+    // results in source order. Each run starts from the label number and string pool a sequential compile has at
+    // that point (one label per if and while, one per subroutine that reads the pool; literals pooled in order
+    // of first appearance), so the output is the same. Returns false, with no token consumed, for a class that
+    // is too small or cannot be scanned ahead.
+    if (!this.jt.isSeekable()) {
+      return false;
+    }
+    int first = this.jt.getPosition();
+    List<Integer> starts = new ArrayList<>();
+    List<Integer> labelBases = new ArrayList<>();
+    Map<String, Integer> pool = new LinkedHashMap<>();
+    int labels = this.condIdx;
+    int depth = 0;
+    int classEnd = -1;
+    boolean readsPool = false;
+    // classEnd stays -1 for unbalanced braces, which the sequential compile reports
+    for (int pos = first; classEnd < 0 && pos < this.jt.getTokenCount(); pos++) {
+      this.jt.seek(pos);
+      TokenType tt = this.jt.getTokenType();
+      if (depth == 0 && (this.jt.isKeyword(KeywordType.CONSTRUCTOR) || this.jt.isKeyword(KeywordType.FUNCTION)
+          || this.jt.isKeyword(KeywordType.METHOD))) {
+        starts.add(pos);
+        labelBases.add(labels);
+        readsPool = false;
+      } else if (this.jt.isSymbol(SymbolType.L_BRACE)) {
+        depth += 1;
+      } else if (this.jt.isSymbol(SymbolType.R_BRACE)) {
+        if (depth == 0) {
+          classEnd = pos;
+        } else if (--depth == 0 && readsPool) {
+          labels += 1;
+        }
+      } else if (this.jt.isKeyword(KeywordType.IF) || this.jt.isKeyword(KeywordType.WHILE)) {
+        labels += 1;
+      } else if (tt == TokenType.STRING_CONST && this.stringPooling) {
+        // the same slots, in the same order, as pooledStringWriter gives out
+        String str = this.jt.getStringVal();
+        if (!pool.containsKey(str) && this.stringPoolBase + pool.size() < MAX_STATICS) {
+          pool.put(str, pool.size());
+        }
+        if (pool.containsKey(str)) {
+          readsPool = true;
+        }
+      }
+    }
+    if (classEnd < 0 || starts.size() < MIN_PARALLEL_SUBROUTINES || starts.get(0) != first) {
+      this.jt.seek(first);
+      return false;
+    }
+
+    // runs of roughly equal token counts
+    int runCount = Math.min(starts.size(), ForkJoinPool.getCommonPoolParallelism() * RUNS_PER_THREAD);
+    int tokensPerRun = (classEnd - first + runCount - 1) / runCount;
+    List<Integer> runFirst = new ArrayList<>();
+    runFirst.add(0);
+    for (int i = 1; i < starts.size(); i++) {
+      if (starts.get(i) - starts.get(runFirst.get(runFirst.size() - 1)) >= tokensPerRun) {
+        runFirst.add(i);
+      }
+    }
+
+    List<ForkJoinTask<VMCode>> runs = new ArrayList<>();
+    for (int r = 0; r < runFirst.size(); r++) {
+      boolean last = r + 1 == runFirst.size();
+      int from = starts.get(runFirst.get(r));
+      int to = last ? classEnd : starts.get(runFirst.get(r + 1));
+      int labelBase = labelBases.get(runFirst.get(r));
+      int labelEnd = last ? labels : labelBases.get(runFirst.get(r + 1));
+      runs.add(ForkJoinPool.commonPool().submit(ForkJoinTask.adapt(() -> {
+        VMCode code = new VMCode();
+        CompilationEngine run = new CompilationEngine(this, this.jt.fork(), code, labelBase, pool);
+        run.jt.seek(from);
+        while (run.jt.getPosition() < to) {
+          run.compileSubroutine();
+        }
+        if (run.jt.getPosition() != to || run.condIdx != labelEnd) {
+          throw new Exception(String.format("Subroutines of class [%s] cannot be compiled apart !!", this.className));
+        }
+        return code;
+      })));
+    }
+    VMCode code = this.writer.getCode();
+    for (ForkJoinTask<VMCode> run : runs) {
+      VMCode part;
+      try {
+        part = run.get();
+      } catch (ExecutionException e) {
+        // rethrow what compileSubroutine threw, as the sequential compile would; ForkJoinTask.adapt wraps checked
+        // exceptions in a RuntimeException, and get() may wrap that once more for the calling thread
+        Throwable cause = e.getCause();
+        while (cause instanceof RuntimeException && cause.getCause() != null) {
+          cause = cause.getCause();
+        }
+        if (cause instanceof Error) {
+          throw (Error) cause;
+        }
+        throw cause instanceof Exception ? (Exception) cause : e;
+      }
+      for (int i = 0; i < part.size(); i++) {
+        code.append(part, i);
+      }
+    }
+    this.condIdx = labels;
+    this.stringPool.putAll(pool);
+    this.jt.seek(classEnd);
+    return true;
+  }
+
+  private int subroutineOpenWriter(KeywordType subroutineType, String subroutineName, int nLocalVars) throws Exception {
+    // function header and this setup; returns where the body starts
+    this.writer.writeFunction(this.className + "." + subroutineName, nLocalVars);
+
+    if (subroutineType == KeywordType.CONSTRUCTOR) {
+      this.writer.writeAlloc(this.table.varCount(VarAttributionType.FIELD));
+      this.writer.writePop(SegmentType.POINTER, 0);
+
+    }
+    if (subroutineType == KeywordType.METHOD) {
+      this.writer.writePush(SegmentType.ARG, 0);
+      this.writer.writePop(SegmentType.POINTER, 0);
+
+    }
+    this.usesStringPool = false;
+    return this.writer.mark();
+  }
+
+  private void subroutineCloseWriter(String returnType, int bodyMark) {
+    if (this.usesStringPool) {
+      stringPoolGuardWriter(bodyMark);
+    }
+    if (returnType.equals(VOID)) {
+      this.writer.writePush(SegmentType.CONST, 0);
+    }
+    this.writer.writeReturn();
+  }
+
+  private void ifWriter(Emitter condition, Emitter thenPart, Emitter elsePart) throws Exception {
+    // the parts are emitted in source order, so a token-level caller can consume its tokens inside them
+    String trueLabel, falseLabel, ifEndLabel;
+    this.condIdx += 1;
+    trueLabel = String.format("L_ifT%d", this.condIdx);
+    falseLabel = String.format("L_ifF%d", this.condIdx);
+    ifEndLabel = String.format("L_ifEND%d", this.condIdx);
+
+    condition.emit();
+
+    if (this.branchInversion && !this.writer.isNot(this.writer.mark() - 1)) {
+      // if-goto the then part and fall through to the else part, instead of negating the condition.
+      // A condition that already ends in not keeps the form below, where the two nots cancel.
+      this.writer.writeIf(trueLabel);
+      int thenMark = this.writer.mark();
+      this.writer.writeLabel(trueLabel);
+      thenPart.emit();
+      int elseMark = this.writer.mark();
+      elsePart.emit();
+      this.writer.writeGoto(ifEndLabel);
+      this.writer.moveTail(elseMark, thenMark);
+      this.writer.writeLabel(ifEndLabel);
+      return;
+    }
+
+    this.writer.writeArithmetic(CommandType.NOT);
+    this.writer.writeIf(falseLabel); // if false is correct, then jump to falseLabel over true label
+    this.writer.writeLabel(trueLabel);
+    thenPart.emit();
+    this.writer.writeGoto(ifEndLabel);
+    this.writer.writeLabel(falseLabel);
+    elsePart.emit();
+    this.writer.writeLabel(ifEndLabel);
+  }
+
+  private void whileWriter(Emitter condition, Emitter body) throws Exception {
+    this.condIdx += 1;
+    String whileBeginLabel = String.format("L_WB%d", this.condIdx),
+        whileEndLabel = String.format("L_WE%d", this.condIdx);
+
+    if (this.branchInversion) {
+      // test at the bottom: goto test; body: <statements>; test: <condition>; if-goto body
+      String whileCondLabel = String.format("L_WC%d", this.condIdx);
+      this.writer.writeGoto(whileCondLabel);
+      this.writer.writeLabel(whileBeginLabel);
+      int condMark = this.writer.mark();
+      this.writer.writeLabel(whileCondLabel);
+      condition.emit();
+      this.writer.writeIf(whileBeginLabel);
+      int bodyMark = this.writer.mark();
+      body.emit();
+      this.writer.moveTail(bodyMark, condMark);
+      return;
+    }
+
+    this.writer.writeLabel(whileBeginLabel);
+    condition.emit();
+    this.writer.writeArithmetic(CommandType.NOT);
+    this.writer.writeIf(whileEndLabel);
+    body.emit();
+    this.writer.writeGoto(whileBeginLabel);
+    this.writer.writeLabel(whileEndLabel);
+  }
+
+  private int binaryWriter(CommandType ct, int left, int right, int leftMark, int rightMark) {
+    // Both operands are written, [leftMark, rightMark) the left one. Constant operands are emitted as usual; once
+    // both sides turn out constant, their code is rewound and replaced by the folded value.
+    int value = foldBinary(ct, left, right);
+    if (value != NOT_CONSTANT) {
+      this.writer.rewind(leftMark);
+      constantWriter(value);
+    } else if (!strengthReduceWriter(ct, left, right, leftMark, rightMark)) {
+      if (this.operandReordering) {
+        reorderOperands(ct, leftMark, rightMark);
+      }
+      this.writer.writeArithmetic(ct);
+    }
+    return value;
+  }
+
+  private int unaryWriter(SymbolType symbol, int operand, int mark) throws Exception {
+    CommandType ct;
+    if (symbol == SymbolType.MINUS) {
+      ct = CommandType.NEQ;
+    } else if (symbol == SymbolType.TILDE) {
+      ct = CommandType.NOT;
+    } else {
+      throw new Exception();
+    }
+    if (operand == NOT_CONSTANT) {
+      this.writer.writeArithmetic(ct);
+      return NOT_CONSTANT;
+    }
+    int value = (short) (ct == CommandType.NEQ ? -operand : ~operand);
+    this.writer.rewind(mark);
+    constantWriter(value);
+    return value;
+  }
+
+  private int keywordConstantWriter(KeywordType keyword) throws Exception {
+    switch (keyword) {
+      case FALSE:
+      case NULL:
+        this.writer.writePush(SegmentType.CONST, 0);
+        return 0;
+      case TRUE:
+        this.writer.writePush(SegmentType.CONST, 0);
+        this.writer.writeArithmetic(CommandType.NOT);
+        return -1;
+      case THIS:
+        this.writer.writePush(SegmentType.POINTER, 0);
+        return NOT_CONSTANT;
+      default:
+        throw new Exception("Unreachable!!");
+    }
+  }
+
+  private void arrayReadWriter(Emitter index) throws Exception {
+    // the array base is on the stack; pointer 1 is kept in temp 0 for an enclosing let a[i] = ...
+    this.writer.writePush(SegmentType.POINTER, 1);
+    this.writer.writePop(SegmentType.TEMP, 0);
+    index.emit();
+    this.writer.writeArithmetic(CommandType.ADD);
+    this.writer.writePop(SegmentType.POINTER, 1);
+    this.writer.writePush(SegmentType.THAT, 0);
+    this.writer.writePop(SegmentType.TEMP, 1);
+    this.writer.writePush(SegmentType.TEMP, 0);
+    this.writer.writePop(SegmentType.POINTER, 1);
+    this.writer.writePush(SegmentType.TEMP, 1);
+  }
+
+  private int foldBinary(CommandType ct, int left, int right) {
+    if (left == NOT_CONSTANT || right == NOT_CONSTANT) {
+      return NOT_CONSTANT;
+    }
+    switch (ct) {
+      case ADD:
+        return (short) (left + right);
+      case SUB:
+        return (short) (left - right);
+      case MUT:
+        return (short) (left * right);
+      case DIV:
+        // division by zero and -32768 / -1 are left to Math.divide at run time
+        if (right == 0 || (left == Short.MIN_VALUE && right == -1)) {
+          return NOT_CONSTANT;
+        }
+        return (short) (left / right);
+      case AND:
+        return (short) (left & right);
+      case OR:
+        return (short) (left | right);
+      case EQ:
+        return left == right ? -1 : 0;
+      case GT:
+        return left > right ? -1 : 0;
+      case LT:
+        return left < right ? -1 : 0;
+      default:
+        return NOT_CONSTANT;
+    }
+  }
+
+  private boolean strengthReduceWriter(CommandType ct, int left, int right, int leftMark, int rightMark) {
+    // x * c, c * x and x / c with a constant c, lowered to inline code instead of Math.multiply / Math.divide.
+    // The code of both operands is already written: [leftMark, rightMark) is the left one, the rest the right one.
+    if (ct == CommandType.DIV && right != NOT_CONSTANT) {
+      if (right == 1 || right == -1) {
+        this.writer.rewind(rightMark);
+        if (right == -1) {
+          this.writer.writeArithmetic(CommandType.NEQ);
+        }
+        return true;
+      }
+      return false;
+    }
+    if (ct != CommandType.MUT || (left == NOT_CONSTANT) == (right == NOT_CONSTANT)) {
+      return false;
+    }
+    int factor;
+    if (right != NOT_CONSTANT) {
+      factor = right;
+      this.writer.rewind(rightMark);
+    } else {
+      // c * x: drop the constant and treat it as x * c
+      factor = left;
+      this.writer.delete(leftMark, rightMark);
+    }
+    if (factor == 0) {
+      if (this.writer.hasCall(leftMark)) {
+        // x still has to run for its side effects
+        this.writer.writePush(SegmentType.CONST, 0);
+        this.writer.writeArithmetic(CommandType.AND);
+      } else {
+        this.writer.rewind(leftMark);
+        this.writer.writePush(SegmentType.CONST, 0);
+      }
+      return true;
+    }
+    if (factor == Short.MIN_VALUE) {
+      // -32768 has no positive counterpart: Math.multiply by the constant itself
+      constantWriter(factor);
+      this.writer.writeArithmetic(CommandType.MUT);
+      return true;
+    }
+    if (!multiplyWriter(Math.abs(factor), leftMark)) {
+      this.writer.writePush(SegmentType.CONST, Math.abs(factor));
+      if (factor < 0) {
+        this.writer.writeArithmetic(CommandType.NEQ);
+      }
+      this.writer.writeArithmetic(CommandType.MUT);
+      return true;
+    }
+    if (factor < 0) {
+      this.writer.writeArithmetic(CommandType.NEQ);
+    }
+    return true;
+  }
+
+  private boolean multiplyWriter(int factor, int xMark) {
+    // x (already on the stack) * factor, factor > 0, as the cheaper of repeated addition and shift-and-add.
+    // The VM has no dup: x is pushed again when its code was a single push, otherwise it is spilled to
+    // MUL_X_TEMP; the running product is doubled through MUL_ACC_TEMP. The sequence never calls out, so
+    // nothing else can touch those temps while it runs.
+    if (factor == 1) {
+      return true;
+    }
+    boolean simple = this.writer.mark() - xMark == 1 && this.writer.isPush(xMark);
+    int bits = 32 - Integer.numberOfLeadingZeros(factor);
+    int setBits = Integer.bitCount(factor);
+    boolean needX = setBits > 1;
+    int additions = (simple ? 0 : 2) + 2 * (factor - 1);
+    int shifts = (simple || !needX ? 0 : 2) + (simple || needX ? 2 : 4) + 4 * (bits - 2) + 2 * (setBits - 1);
+    if (Math.min(additions, shifts) > MAX_MULTIPLY_SEQUENCE) {
+      return false;
+    }
+
+    SegmentType xSeg = simple ? this.writer.pushSegmentAt(xMark) : SegmentType.TEMP;
+    int xIdx = simple ? this.writer.pushIndexAt(xMark) : MUL_X_TEMP;
+    if (additions <= shifts) {
+      if (!simple) {
+        this.writer.writePop(SegmentType.TEMP, MUL_X_TEMP);
+        this.writer.writePush(SegmentType.TEMP, MUL_X_TEMP);
+      }
+      for (int i = 1; i < factor; i++) {
+        this.writer.writePush(xSeg, xIdx);
+        this.writer.writeArithmetic(CommandType.ADD);
+      }
+      return true;
+    }
+
+    if (!simple && needX) {
+      this.writer.writePop(SegmentType.TEMP, MUL_X_TEMP);
+      this.writer.writePush(SegmentType.TEMP, MUL_X_TEMP);
+    }
+    boolean first = true;
+    for (int bit = bits - 2; bit >= 0; bit--) {
+      // double the running product; while it is still x, adding x again is cheaper than going through a temp
+      if (first && (simple || needX)) {
+        this.writer.writePush(xSeg, xIdx);
+      } else {
+        this.writer.writePop(SegmentType.TEMP, MUL_ACC_TEMP);
+        this.writer.writePush(SegmentType.TEMP, MUL_ACC_TEMP);
+        this.writer.writePush(SegmentType.TEMP, MUL_ACC_TEMP);
+      }
+      this.writer.writeArithmetic(CommandType.ADD);
+      first = false;
+      if ((factor & (1 << bit)) != 0) {
+        this.writer.writePush(xSeg, xIdx);
+        this.writer.writeArithmetic(CommandType.ADD);
+      }
+    }
+    return true;
+  }
+
+  private void reorderOperands(CommandType ct, int leftMark, int rightMark) {
+    // Sethi-Ullman order for a commutative operator: the operand that needs the deeper stack goes first, so the
+    // other one is evaluated on top of a single value instead of the deep one on top of it. With a call on
+    // either side the order is observable (a call can change what the other side reads), so it is kept.
+    if (!commutativeSet.contains(ct) || this.writer.hasCall(leftMark)) {
+      return;
+    }
+    VMCode code = this.writer.getCode();
+    int end = this.writer.mark();
+    if (code.maxStackDepth(rightMark, end) > code.maxStackDepth(leftMark, rightMark)) {
+      this.writer.moveTail(rightMark, leftMark);
+    }
+  }
+
+  private void pooledStringWriter(String str) {
+    Integer slot = this.stringPool.get(str);
+    if (slot == null) {
+      if (this.stringPoolBase + this.stringPool.size() >= MAX_STATICS) {
+        // no static left for it: this literal is built on every evaluation, as without pooling
+        this.writer.writeString(str);
+        return;
+      }
+      slot = this.stringPool.size();
+      this.stringPool.put(str, slot);
+    }
+    this.writer.writePush(SegmentType.STATIC, this.stringPoolBase + slot);
+    this.usesStringPool = true;
+  }
+
+  private void stringPoolGuardWriter(int bodyMark) {
+    // Placed in front of the body of every subroutine that reads the pool: fill the pool on first use.
+    // A filled slot holds a String address, which is never 0.
+    this.condIdx += 1;
+    String readyLabel = String.format("L_SP%d", this.condIdx);
+    int guardMark = this.writer.mark();
+    this.writer.writePush(SegmentType.STATIC, this.stringPoolBase);
+    this.writer.writeIf(readyLabel);
+    this.writer.writeCall(stringPoolInitName(), 0);
+    this.writer.writePop(SegmentType.TEMP, 0);
+    this.writer.writeLabel(readyLabel);
+    this.writer.moveTail(guardMark, bodyMark);
+  }
+
+  private void stringPoolInitWriter() {
+    // function <Class>.$initStrings 0: builds every distinct literal of the class once
+    this.writer.writeFunction(stringPoolInitName(), 0);
+    for (Map.Entry<String, Integer> e : this.stringPool.entrySet()) {
+      this.writer.writeString(e.getKey());
+      this.writer.writePop(SegmentType.STATIC, this.stringPoolBase + e.getValue());
+    }
+    this.writer.writePush(SegmentType.CONST, 0);
+    this.writer.writeReturn();
+  }
+
+  private String stringPoolInitName() {
+    // '$' cannot appear in a Jack identifier, so this never clashes with a user subroutine
+    return this.className + ".$initStrings";
+  }
+
+  private void constantWriter(int value) {
+    // cheapest push sequence: push constant n, or push constant ~n; not for negative values (true is ~0)
+    if (value >= 0) {
+      this.writer.writePush(SegmentType.CONST, value);
+    } else {
+      this.writer.writePush(SegmentType.CONST, ~value);
+      this.writer.writeArithmetic(CommandType.NOT);
+    }
+  }
+
   private void varPushWriter(String varName) throws Exception {
-    VarAttributionType vType = this.table.kindOf(varName);
-    if (vType == VarAttributionType.NONE) {
+    SymbolValueBean var = this.table.resolve(varName);
+    if (var == null) {
       return;
     }
-    int varIdx = this.table.indexOf(varName);
-    switch (vType) {
+    switch (var.getKind()) {
       case STATIC:
-        this.writer.writePush(SegmentType.STATIC, varIdx);
+        this.writer.writePush(SegmentType.STATIC, var.getIndex());
         break;
       case FIELD:
-        this.writer.writePush(SegmentType.THIS, varIdx);
+        this.writer.writePush(SegmentType.THIS, var.getIndex());
         break;
       case ARG:
-        this.writer.writePush(SegmentType.ARG, varIdx);
+        this.writer.writePush(SegmentType.ARG, var.getIndex());
         break;
       case LOCAL:
-        this.writer.writePush(SegmentType.LOCAL, varIdx);
+        this.writer.writePush(SegmentType.LOCAL, var.getIndex());
         break;
     }
   }
 
   private void varPopWriter(String varName) throws Exception {
-    VarAttributionType vType = this.table.kindOf(varName);
-    if (vType == VarAttributionType.NONE) {
+    SymbolValueBean var = this.table.resolve(varName);
+    if (var == null) {
       return;
     }
-    int varIdx = this.table.indexOf(varName);
-    switch (vType) {
+    switch (var.getKind()) {
       case STATIC:
-        this.writer.writePop(SegmentType.STATIC, varIdx);
+        this.writer.writePop(SegmentType.STATIC, var.getIndex());
         break;
       case FIELD:
-        this.writer.writePop(SegmentType.THIS, varIdx);
+        this.writer.writePop(SegmentType.THIS, var.getIndex());
         break;
       case ARG:
-        this.writer.writePop(SegmentType.ARG, varIdx);
+        this.writer.writePop(SegmentType.ARG, var.getIndex());
         break;
       case LOCAL:
-        this.writer.writePop(SegmentType.LOCAL, varIdx);
+        this.writer.writePop(SegmentType.LOCAL, var.getIndex());
         break;
     }
   }
 
   private void subroutineWriter(String name) throws Exception {
-    String callName = null, methodName = null;
-    boolean isPushPointer = false;
+    String methodName = null;
 
-    if (this.jt.getTokenType() == TokenType.SYMBOL && ".".equals(this.jt.getSymbol())) {
+    if (this.jt.isSymbol(SymbolType.DOT)) {
       symbolGetter(); // .
       methodName = identifierGetter(); // $subroutine.name
     }
 
-    if (methodName == null) {
-      isPushPointer = true;
-      this.writer.writePush(SegmentType.POINTER, 0);
-      callName = String.format("%s.%s", this.className, name);
-    } else {
-      VarAttributionType kind = this.table.kindOf(name);
-      if (kind == VarAttributionType.NONE) {
-        callName = String.format("%s.%s", name, methodName);
-      } else {
-        String type = this.table.typeOf(name);
-        callName = String.format("%s.%s", type, methodName);
-        isPushPointer = true;
-        varPushWriter(name);
-      }
-    }
+    boolean isPushPointer = methodName == null || this.table.resolve(name) != null;
+    String callName = callTargetWriter(name, methodName);
 
     symbolGetter(); // (
     int nParam = compileExpressionList();
@@ -553,5 +1328,22 @@ public class CompilationEngine {
     this.writer.writeCall(callName, nParam);
   }
 
+  private String callTargetWriter(String name, String methodName) throws Exception {
+    // pushes the receiver of a method call and returns the full name of the called subroutine
+    if (methodName == null) {
+      this.writer.writePush(SegmentType.POINTER, 0);
+      return String.format("%s.%s", this.className, name);
+    }
+    SymbolValueBean var = this.table.resolve(name);
+    if (var == null) {
+      return String.format("%s.%s", name, methodName);
+    }
+    varPushWriter(name);
+    return String.format("%s.%s", var.getType(), methodName);
+  }
+
+  private interface Emitter {
+    void emit() throws Exception;
+  }
 
 }
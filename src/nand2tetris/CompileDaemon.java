@@ -0,0 +1,210 @@
+package nand2tetris;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Long-lived compiler process that serves builds over a Unix domain socket, or over stdin/stdout.
+ * The JVM, the JIT-compiled compiler and its static tables stay warm between builds.
+ * <p>
+ * A request is a header line "jackc VERSION compile", a "cwd\tDIR" line, one "arg\tARG" line per command-line
+ * argument and an "end" line; "jackc VERSION stop" shuts the daemon down. The reply is the build output as
+ * "out\tLINE" lines, failures as "err\tLINE" lines, and a final "exit\tSTATUS" line. On the socket every
+ * connection carries one request; on stdin requests follow each other until end of input. A build that runs
+ * longer than REQUEST_TIMEOUT_SECONDS is abandoned and its request fails.
+ */
+public class CompileDaemon {
+
+  static final String HEADER = "jackc";
+  static final long REQUEST_TIMEOUT_SECONDS = 600;
+
+  private final String socket;
+  private final ExecutorService builds;
+  private volatile boolean running;
+  private ServerSocketChannel server;
+
+  CompileDaemon(String socket) {
+    this.socket = socket;
+    this.builds = Executors.newCachedThreadPool(r -> {
+      Thread t = new Thread(r, "jackc-build");
+      t.setDaemon(true);
+      return t;
+    });
+    this.running = true;
+  }
+
+  public static Path defaultSocket() {
+    return Path.of(System.getProperty("java.io.tmpdir"), String.format("jackc-%s.sock", System.getProperty("user.name")));
+  }
+
+  public void serve() throws Exception {
+    if (this.socket.equals("-")) {
+      BufferedReader in = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+      while (this.running && handle(in, System.out)) {
+        System.out.flush();
+      }
+      this.builds.shutdown();
+      return;
+    }
+
+    Path path = Path.of(this.socket);
+    if (Files.exists(path, LinkOption.NOFOLLOW_LINKS)) {
+      if (Files.isRegularFile(path, LinkOption.NOFOLLOW_LINKS) || Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)
+          || Files.isSymbolicLink(path)) {
+        // only a socket may be a leftover of an earlier daemon; anything else belongs to someone else
+        throw new Exception(String.format("Address [%s] is in use: it is not a socket !!", path));
+      }
+      boolean listening;
+      try {
+        SocketChannel.open(UnixDomainSocketAddress.of(path)).close();
+        listening = true;
+      } catch (IOException e) {
+        // nobody answers: a leftover of a daemon that did not shut down cleanly
+        listening = false;
+        Files.delete(path);
+      }
+      if (listening) {
+        throw new Exception(String.format("A daemon is already listening on [%s] !!", path));
+      }
+    }
+    this.server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+    this.server.bind(UnixDomainSocketAddress.of(path));
+    path.toFile().deleteOnExit();
+    System.out.printf("Jack compiler daemon %s listening on %s%n", JackCompiler.VERSION, path);
+
+    ExecutorService workers = Executors.newCachedThreadPool(r -> {
+      Thread t = new Thread(r, "jackc-request");
+      t.setDaemon(true);
+      return t;
+    });
+    try {
+      while (this.running) {
+        SocketChannel client = this.server.accept();
+        workers.submit(() -> {
+          try (client) {
+            InputStream in = Channels.newInputStream(client);
+            OutputStream out = Channels.newOutputStream(client);
+            PrintStream reply = new PrintStream(out, false, StandardCharsets.UTF_8);
+            handle(new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8)), reply);
+            reply.flush();
+          } catch (IOException e) {
+            // the client went away, nothing to reply to
+          }
+          return null;
+        });
+      }
+    } catch (AsynchronousCloseException e) {
+      // stop request closed the server channel
+    } finally {
+      workers.shutdown();
+      this.builds.shutdown();
+      Files.deleteIfExists(path);
+    }
+  }
+
+  // Private method
+
+  private boolean handle(BufferedReader in, PrintStream reply) throws IOException {
+    // returns false once there is nothing more to serve on this stream
+    String header = in.readLine();
+    if (header == null) {
+      return false;
+    }
+    String[] parts = header.split(" ");
+    if (parts.length != 3 || !parts[0].equals(HEADER)) {
+      reply.printf("err\tMalformed request [%s]%n", header);
+      reply.println("exit\t2");
+      return false;
+    }
+    if (!parts[1].equals(JackCompiler.VERSION)) {
+      reply.printf("err\tDaemon runs compiler %s, client is %s%n", JackCompiler.VERSION, parts[1]);
+      reply.println("exit\t2");
+      return true;
+    }
+    if (parts[2].equals("stop")) {
+      stop();
+      reply.println("exit\t0");
+      return false;
+    }
+
+    Path cwd = null;
+    List<String> args = new ArrayList<>();
+    for (String line = in.readLine(); line != null && !line.equals("end"); line = in.readLine()) {
+      if (line.startsWith("cwd\t")) {
+        cwd = Path.of(line.substring("cwd\t".length()));
+      } else if (line.startsWith("arg\t")) {
+        args.add(line.substring("arg\t".length()));
+      }
+    }
+
+    ByteArrayOutputStream buf = new ByteArrayOutputStream();
+    int status;
+    String failure = null;
+    Path dir = cwd;
+    Future<Integer> build = null;
+    try (PrintStream out = new PrintStream(buf, true, StandardCharsets.UTF_8)) {
+      CompilerOptions options = CompilerOptions.parse(args.toArray(new String[0]));
+      if (dir == null || options.getDaemonSocket() != null || options.isWatch()) {
+        throw new Exception("A compile request needs a cwd and cannot start a daemon or a watch !!");
+      }
+      build = this.builds.submit(() -> JackCompiler.compile(options, dir, out));
+      status = build.get(REQUEST_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    } catch (TimeoutException e) {
+      // the build is interrupted and left behind, so this request thread can go on serving
+      build.cancel(true);
+      status = 1;
+      failure = String.format("The build did not finish in %d s !!", REQUEST_TIMEOUT_SECONDS);
+    } catch (ExecutionException e) {
+      status = 1;
+      failure = message(e.getCause());
+    } catch (Exception e) {
+      status = 1;
+      failure = message(e);
+    }
+    for (String line : buf.toString(StandardCharsets.UTF_8).split("\n", -1)) {
+      if (!line.isEmpty()) {
+        reply.printf("out\t%s%n", line);
+      }
+    }
+    if (failure != null) {
+      reply.printf("err\t%s%n", failure);
+    }
+    reply.printf("exit\t%d%n", status);
+    return true;
+  }
+
+  private static String message(Throwable e) {
+    return e.getMessage() != null ? e.getMessage() : e.toString();
+  }
+
+  private void stop() throws IOException {
+    this.running = false;
+    if (this.server != null) {
+      this.server.close();
+    }
+  }
+
+}
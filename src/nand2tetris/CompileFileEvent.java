@@ -0,0 +1,66 @@
+package nand2tetris;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * JFR event committed for every compiled file while a recording has it enabled.
+ */
+@Name("nand2tetris.CompileFile")
+@Label("Compile File")
+@Category("Jack Compiler")
+@StackTrace(false)
+class CompileFileEvent extends jdk.jfr.Event {
+
+  @Label("File")
+  String file;
+
+  @Label("Up To Date")
+  boolean upToDate;
+
+  @Label("Read Time")
+  @Timespan
+  long readTime;
+
+  @Label("Tokenize Time")
+  @Timespan
+  long tokenizeTime;
+
+  @Label("Codegen Time")
+  @Timespan
+  long codegenTime;
+
+  @Label("Write Time")
+  @Timespan
+  long writeTime;
+
+  @Label("Tokens")
+  int tokens;
+
+  @Label("Instructions")
+  int instructions;
+
+  @Label("Max Stack Depth")
+  int maxStackDepth;
+
+  @Label("Read Allocation")
+  @DataAmount
+  long readAllocated;
+
+  @Label("Tokenize Allocation")
+  @DataAmount
+  long tokenizeAllocated;
+
+  @Label("Codegen Allocation")
+  @DataAmount
+  long codegenAllocated;
+
+  @Label("Write Allocation")
+  @DataAmount
+  long writeAllocated;
+
+}
@@ -0,0 +1,62 @@
+package nand2tetris;
+
+import jdk.jfr.EventType;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Destination of the per-file metrics: JSON lines on stdout or in a file, and JFR events.
+ * The compiler only creates one when --metrics is given or a JFR recording enables CompileFileEvent at start-up;
+ * otherwise every hook is a single null check.
+ */
+public class CompileMetrics {
+
+  private final PrintStream out;
+  private final boolean sharedOut;
+
+  CompileMetrics(PrintStream out, boolean sharedOut) {
+    this.out = out;
+    this.sharedOut = sharedOut;
+  }
+
+  public static CompileMetrics create(CompilerOptions options, Path workingDir, PrintStream stdout) throws IOException {
+    if (options.getMetricsOutput() != null) {
+      String target = options.getMetricsOutput();
+      return new CompileMetrics(target.equals("-") ? stdout
+          : new PrintStream(Files.newOutputStream(workingDir.resolve(target)), false, "UTF-8"), target.equals("-"));
+    }
+    if (EventType.getEventType(CompileFileEvent.class).isEnabled()) {
+      return new CompileMetrics(null, false);
+    }
+    return null;
+  }
+
+  public FileMetrics start(Path source) {
+    return new FileMetrics(source.toString());
+  }
+
+  public void finish(FileMetrics metrics) {
+    metrics.commitEvent();
+    if (this.out != null) {
+      String line = metrics.toJson();
+      synchronized (this.out) {
+        this.out.println(line);
+      }
+    }
+  }
+
+  public void close() {
+    if (this.out == null) {
+      return;
+    }
+    if (this.sharedOut) {
+      this.out.flush();
+    } else {
+      this.out.close();
+    }
+  }
+
+}
@@ -0,0 +1,244 @@
+package nand2tetris;
+
+import nand2tetris.utils.PhaseType;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Three-stage build: reader threads prefetch sources, compile workers turn them into VMCode and one writer
+ * thread writes the results. The stages are joined by bounded queues, so readers stop prefetching when the
+ * compilers fall behind and compilers stop when the writer does; on a slow file system the reads and writes of
+ * some files overlap the compilation of others.
+ */
+public class CompilePipeline {
+
+  static final int READERS = 2;
+  static final int QUEUE_CAPACITY = 16;
+  // handed down the stages once a stage has no more work
+  private static final Job END = new Job(-1, null);
+
+  private final CompilerOptions options;
+  private final Map<Path, BuildCache> caches;
+  private final CompileMetrics metrics;
+  private final int workers;
+  // busy time per stage, summed over its threads
+  private final AtomicLong readNanos;
+  private final AtomicLong compileNanos;
+  private final AtomicLong writeNanos;
+  private long wallNanos;
+
+  CompilePipeline(CompilerOptions options, Map<Path, BuildCache> caches, CompileMetrics metrics) {
+    this.options = options;
+    this.caches = caches;
+    this.metrics = metrics;
+    this.workers = Math.max(1, options.getJobs());
+    this.readNanos = new AtomicLong();
+    this.compileNanos = new AtomicLong();
+    this.writeNanos = new AtomicLong();
+  }
+
+  public List<Exception> run(List<File> targetFiles) throws InterruptedException {
+    // Returns the failure of every file in input order, null where it compiled.
+    Exception[] failures = new Exception[targetFiles.size()];
+    List<Integer> order = JackCompiler.largestFirst(targetFiles);
+    AtomicInteger nextRead = new AtomicInteger();
+    AtomicInteger readersLeft = new AtomicInteger(READERS);
+    AtomicInteger workersLeft = new AtomicInteger(this.workers);
+    BlockingQueue<Job> compileQueue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    BlockingQueue<Job> writeQueue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+
+    List<Thread> threads = new ArrayList<>();
+    for (int r = 0; r < READERS; r++) {
+      threads.add(new Thread(() -> {
+        // the END handoff must happen however this thread stops, or the stages after it wait forever
+        try {
+          for (int i = nextRead.getAndIncrement(); i < order.size(); i = nextRead.getAndIncrement()) {
+            int index = order.get(i);
+            Job job = new Job(index, targetFiles.get(index));
+            long start = System.nanoTime();
+            read(job);
+            this.readNanos.addAndGet(System.nanoTime() - start);
+            put(job.failure != null || job.upToDate ? writeQueue : compileQueue, job);
+          }
+        } finally {
+          if (readersLeft.decrementAndGet() == 0) {
+            for (int w = 0; w < this.workers; w++) {
+              put(compileQueue, END);
+            }
+          }
+        }
+      }, "jackc-read-" + r));
+    }
+    for (int w = 0; w < this.workers; w++) {
+      threads.add(new Thread(() -> {
+        try {
+          CompilationEngine engine = new CompilationEngine(this.options);
+          for (Job job = take(compileQueue); job != END; job = take(compileQueue)) {
+            long start = System.nanoTime();
+            compile(engine, job);
+            this.compileNanos.addAndGet(System.nanoTime() - start);
+            put(writeQueue, job);
+          }
+        } finally {
+          if (workersLeft.decrementAndGet() == 0) {
+            put(writeQueue, END);
+          }
+        }
+      }, "jackc-compile-" + w));
+    }
+    threads.add(new Thread(() -> {
+      // takes whatever has queued up in one go, so the writer hands off once per batch rather than per file
+      List<Job> batch = new ArrayList<>();
+      boolean done = false;
+      while (!done) {
+        batch.add(take(writeQueue));
+        writeQueue.drainTo(batch);
+        long start = System.nanoTime();
+        for (Job job : batch) {
+          if (job == END) {
+            done = true;
+          } else {
+            write(job);
+            failures[job.index] = job.failure;
+          }
+        }
+        this.writeNanos.addAndGet(System.nanoTime() - start);
+        batch.clear();
+      }
+    }, "jackc-write"));
+
+    long start = System.nanoTime();
+    for (Thread thread : threads) {
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    this.wallNanos = System.nanoTime() - start;
+    return Arrays.asList(failures);
+  }
+
+  public String report() {
+    return String.format("Pipeline: %.1f ms, read %d threads %.0f%% busy, compile %d threads %.0f%% busy, "
+            + "write 1 thread %.0f%% busy", this.wallNanos / 1e6, READERS, utilization(this.readNanos, READERS),
+        this.workers, utilization(this.compileNanos, this.workers), utilization(this.writeNanos, 1));
+  }
+
+  // Private method
+
+  private void read(Job job) {
+    try {
+      job.metrics = this.metrics == null ? null : this.metrics.start(job.source);
+      job.sourceBytes = JackCompiler.readSource(job.source);
+      BuildCache cache = this.caches.get(job.outputDir);
+      job.upToDate = cache != null && cache.isUpToDate(job.source, job.sourceBytes, job.output);
+      if (job.metrics != null) {
+        job.metrics.lap(PhaseType.READ);
+        job.metrics.setUpToDate(job.upToDate);
+      }
+    } catch (Throwable e) {
+      job.failure = failure(e);
+    }
+  }
+
+  private void compile(CompilationEngine engine, Job job) {
+    try {
+      if (job.metrics != null) {
+        job.metrics.start();
+      }
+      job.code = JackCompiler.compileCode(engine, job.sourceBytes, job.metrics);
+      if (this.options.isPeephole()) {
+        new PeepholeOptimizer().optimize(job.code);
+      }
+      if (job.metrics != null) {
+        job.metrics.lap(PhaseType.CODEGEN);
+      }
+    } catch (Throwable e) {
+      job.failure = failure(e);
+    }
+  }
+
+  private void write(Job job) {
+    try {
+      if (job.code != null) {
+        if (job.metrics != null) {
+          job.metrics.start();
+        }
+        JackCompiler.writeCode(job.code, job.output);
+        BuildCache cache = this.caches.get(job.outputDir);
+        if (cache != null) {
+          cache.record(job.source, job.sourceBytes, job.output);
+        }
+        if (job.metrics != null) {
+          job.metrics.lap(PhaseType.WRITE);
+          job.metrics.setInstructions(job.code.size());
+          job.metrics.setMaxStackDepths(job.code.maxStackDepths());
+        }
+      }
+      if (job.metrics != null && job.failure == null) {
+        this.metrics.finish(job.metrics);
+      }
+    } catch (Throwable e) {
+      job.failure = failure(e);
+    }
+    // the source and code are not needed any more; dropping them keeps the queued jobs small
+    job.sourceBytes = null;
+    job.code = null;
+  }
+
+  private static Exception failure(Throwable e) {
+    // an Error, such as a StackOverflowError on a deeply nested expression, fails the file and not the stage thread
+    return e instanceof Exception ? (Exception) e : new Exception(String.format("%s !!", e), e);
+  }
+
+  private double utilization(AtomicLong busyNanos, int threads) {
+    return this.wallNanos == 0 ? 0 : 100.0 * busyNanos.get() / this.wallNanos / threads;
+  }
+
+  private static void put(BlockingQueue<Job> queue, Job job) {
+    try {
+      queue.put(job);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private static Job take(BlockingQueue<Job> queue) {
+    try {
+      return queue.take();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return END;
+    }
+  }
+
+  private static final class Job {
+    final int index;
+    final Path source;
+    final Path output;
+    final Path outputDir;
+    ByteBuffer sourceBytes;
+    boolean upToDate;
+    VMCode code;
+    FileMetrics metrics;
+    Exception failure;
+
+    Job(int index, File targetFile) {
+      this.index = index;
+      this.source = targetFile == null ? null : Path.of(String.format("%s.jack", targetFile));
+      this.output = targetFile == null ? null : Path.of(String.format("%s.vm", targetFile));
+      this.outputDir = targetFile == null ? null : JackCompiler.outputDir(targetFile);
+    }
+  }
+
+}
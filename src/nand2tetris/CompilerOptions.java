@@ -0,0 +1,208 @@
+package nand2tetris;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class CompilerOptions {
+
+  private final List<String> inputs;
+  private int jobs;
+  private boolean incremental;
+  private boolean peephole;
+  private boolean stringPooling;
+  private boolean operandReordering;
+  private boolean wholeProgram;
+  private int inlineThreshold;
+  private String metricsOutput;
+  private String daemonSocket;
+  private boolean watch;
+  private boolean streaming;
+  private boolean pipeline;
+  private boolean parallelSubroutines;
+  private boolean syntaxTree;
+
+  CompilerOptions() {
+    this.inputs = new ArrayList<>();
+    this.jobs = 1;
+    this.incremental = false;
+    this.peephole = false;
+    this.stringPooling = false;
+    this.operandReordering = false;
+    this.wholeProgram = false;
+    this.inlineThreshold = 0;
+    this.metricsOutput = null;
+    this.daemonSocket = null;
+    this.watch = false;
+    this.streaming = false;
+    this.pipeline = false;
+    this.parallelSubroutines = false;
+    this.syntaxTree = false;
+  }
+
+  public static CompilerOptions parse(String[] args) throws Exception {
+    CompilerOptions options = new CompilerOptions();
+    for (int i = 0; i < args.length; i++) {
+      String arg = args[i];
+      if (arg.equals("-j") || arg.equals("--jobs")) {
+        if (i + 1 >= args.length) {
+          throw new Exception(String.format("Option [%s] needs a value !!", arg));
+        }
+        i += 1;
+        options.jobs = parseJobs(args[i]);
+      } else if (arg.startsWith("--jobs=")) {
+        options.jobs = parseJobs(arg.substring("--jobs=".length()));
+      } else if (arg.equals("-i") || arg.equals("--incremental")) {
+        options.incremental = true;
+      } else if (arg.equals("--peephole")) {
+        options.peephole = true;
+      } else if (arg.equals("--pool-strings")) {
+        options.stringPooling = true;
+      } else if (arg.equals("--reorder-operands")) {
+        options.operandReordering = true;
+      } else if (arg.equals("--whole-program")) {
+        options.wholeProgram = true;
+      } else if (arg.equals("--inline")) {
+        options.wholeProgram = true;
+        options.inlineThreshold = Inliner.DEFAULT_THRESHOLD;
+      } else if (arg.startsWith("--inline=")) {
+        options.wholeProgram = true;
+        options.inlineThreshold = parseCount(arg.substring("--inline=".length()), "inline threshold");
+      } else if (arg.equals("--metrics")) {
+        options.metricsOutput = "-";
+      } else if (arg.startsWith("--metrics=")) {
+        options.metricsOutput = arg.substring("--metrics=".length());
+      } else if (arg.equals("--parallel-subroutines")) {
+        options.parallelSubroutines = true;
+      } else if (arg.equals("--ast")) {
+        options.syntaxTree = true;
+      } else if (arg.equals("--pipeline")) {
+        options.pipeline = true;
+      } else if (arg.equals("--stream")) {
+        options.streaming = true;
+      } else if (arg.equals("--watch")) {
+        options.watch = true;
+      } else if (arg.equals("--daemon")) {
+        options.daemonSocket = CompileDaemon.defaultSocket().toString();
+      } else if (arg.startsWith("--daemon=")) {
+        options.daemonSocket = arg.substring("--daemon=".length());
+      } else {
+        options.inputs.add(arg);
+      }
+    }
+    return options;
+  }
+
+  public List<String> getInputs() {
+    return inputs;
+  }
+
+  public int getJobs() {
+    return jobs;
+  }
+
+  public boolean isIncremental() {
+    return incremental;
+  }
+
+  public boolean isPeephole() {
+    // also makes the engine emit if statements with inverted branches and while loops with the test at the bottom
+    return peephole;
+  }
+
+  public boolean isStringPooling() {
+    // Every distinct literal of a class is built once, on first use, and then shared by all its occurrences.
+    // Pooled strings are read-only: a setCharAt, appendChar or dispose on one is seen by every other use.
+    return stringPooling;
+  }
+
+  public boolean isOperandReordering() {
+    // call-free operands of + * & | = are swapped when that lowers the stack depth the expression needs
+    return operandReordering;
+  }
+
+  public boolean isWholeProgram() {
+    // every class's output depends on all the others here, so the per-file incremental cache is not used
+    return wholeProgram;
+  }
+
+  public int getInlineThreshold() {
+    // 0 when inlining is off; inlining implies whole-program mode
+    return inlineThreshold;
+  }
+
+  public String getMetricsOutput() {
+    // null when per-file metrics are off, "-" for stdout, otherwise the JSON lines file
+    return metricsOutput;
+  }
+
+  public String getDaemonSocket() {
+    // null unless this process should serve builds; "-" serves them over stdin/stdout
+    return daemonSocket;
+  }
+
+  public boolean isStreaming() {
+    // sources are tokenized while they are read instead of being loaded whole; not for whole-program builds
+    return streaming;
+  }
+
+  public boolean isPipeline() {
+    // read, compile and write stages on their own threads, with -j compile workers; sources are read whole
+    return pipeline;
+  }
+
+  public boolean isParallelSubroutines() {
+    // large classes have their subroutines compiled on the common fork-join pool; the output does not change
+    return parallelSubroutines;
+  }
+
+  public boolean isSyntaxTree() {
+    // each class is parsed into a SyntaxTree first and code is generated from the tree; needs sources that are read
+    // whole, and subroutines are then compiled sequentially even with --parallel-subroutines
+    return syntaxTree;
+  }
+
+  public boolean isWatch() {
+    return watch;
+  }
+
+  public String getCodegenKey() {
+    // every option that changes the generated code must show up here, it keys the incremental build cache
+    StringBuilder key = new StringBuilder("default");
+    if (this.peephole) {
+      key.append("+peephole");
+    }
+    if (this.stringPooling) {
+      key.append("+pool-strings");
+    }
+    if (this.operandReordering) {
+      key.append("+reorder-operands");
+    }
+    if (this.syntaxTree) {
+      // a second code generator: its output is never reused for the token path, or the other way round
+      key.append("+ast");
+    }
+    return key.toString();
+  }
+
+  // Private method
+
+  private static int parseJobs(String value) throws Exception {
+    // 0 means one worker per available core
+    int jobs = parseCount(value, "worker count");
+    return jobs == 0 ? Runtime.getRuntime().availableProcessors() : jobs;
+  }
+
+  private static int parseCount(String value, String what) throws Exception {
+    // a non-negative number, reported like any other bad option otherwise
+    int count;
+    try {
+      count = Integer.parseInt(value);
+    } catch (NumberFormatException e) {
+      count = -1;
+    }
+    if (count < 0) {
+      throw new Exception(String.format("Invalid %s [%s] !!", what, value));
+    }
+    return count;
+  }
+}
@@ -0,0 +1,108 @@
+package nand2tetris;
+
+import nand2tetris.utils.OpcodeType;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Whole-program removal of functions that can never be called.
+ * The call graph is read off the call instructions of every class; everything not reachable from Main.main
+ * (or Sys.init, when the program brings its own OS) is dropped from its VMCode.
+ */
+public class DeadCodeEliminator {
+
+  static final String[] ROOTS = {"Main.main", "Sys.init"};
+
+  private int totalFunctions;
+  private int removedFunctions;
+  private int totalInstructions;
+  private int removedInstructions;
+  private final List<String> removedNames;
+
+  DeadCodeEliminator() {
+    this.removedNames = new ArrayList<>();
+  }
+
+  public void eliminate(List<VMCode> codes) {
+    Map<String, List<String>> callGraph = new HashMap<>();
+    for (VMCode code : codes) {
+      this.totalInstructions += code.size();
+      String current = null;
+      for (int i = 0; i < code.size(); i++) {
+        if (code.is(i, OpcodeType.FUNCTION)) {
+          current = code.getName(i);
+          callGraph.put(current, new ArrayList<>());
+          this.totalFunctions += 1;
+        } else if (code.is(i, OpcodeType.CALL) && current != null) {
+          callGraph.get(current).add(code.getName(i));
+        }
+      }
+    }
+
+    Set<String> reachable = reachableFrom(callGraph);
+    if (reachable.isEmpty()) {
+      // no entry point among the classes: nothing is known to be dead
+      return;
+    }
+
+    for (VMCode code : codes) {
+      int w = 0;
+      boolean keep = true;
+      for (int r = 0; r < code.size(); r++) {
+        if (code.is(r, OpcodeType.FUNCTION)) {
+          keep = reachable.contains(code.getName(r));
+          if (!keep) {
+            this.removedFunctions += 1;
+            this.removedNames.add(code.getName(r));
+          }
+        }
+        if (keep) {
+          code.copy(r, w);
+          w += 1;
+        }
+      }
+      this.removedInstructions += code.size() - w;
+      code.truncate(w);
+    }
+  }
+
+  public List<String> getRemovedNames() {
+    return removedNames;
+  }
+
+  public String report() {
+    return String.format("Whole program: removed %d of %d functions, %d of %d VM instructions%s",
+        this.removedFunctions, this.totalFunctions, this.removedInstructions, this.totalInstructions,
+        this.removedNames.isEmpty() ? "" : " " + this.removedNames);
+  }
+
+  // Private method
+
+  private Set<String> reachableFrom(Map<String, List<String>> callGraph) {
+    Set<String> reachable = new HashSet<>();
+    Deque<String> work = new ArrayDeque<>();
+    for (String root : ROOTS) {
+      if (callGraph.containsKey(root)) {
+        reachable.add(root);
+        work.push(root);
+      }
+    }
+    while (!work.isEmpty()) {
+      for (String callee : callGraph.get(work.pop())) {
+        // calls into classes that are not part of the program (the OS) have no node
+        if (callGraph.containsKey(callee) && reachable.add(callee)) {
+          work.push(callee);
+        }
+      }
+    }
+    return reachable;
+  }
+
+}
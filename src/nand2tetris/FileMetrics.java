@@ -0,0 +1,129 @@
+package nand2tetris;
+
+import nand2tetris.utils.PhaseType;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Per-phase timings, allocation and sizes of one compiled file.
+ * A phase is closed with lap(), which charges the time and the bytes allocated by the current thread since the
+ * previous lap to it; in whole-program mode the write phase runs on another thread than the others, so every lap
+ * reads the counter of the thread it runs on.
+ */
+public class FileMetrics {
+
+  private static final com.sun.management.ThreadMXBean threads =
+      ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean
+          ? (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean() : null;
+  private static final boolean allocationSupported =
+      threads != null && threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled();
+
+  private final String file;
+  private final long[] nanos;
+  private final long[] allocated;
+  private long lastNanos;
+  private long lastAllocated;
+  private boolean upToDate;
+  private int tokens;
+  private int instructions;
+  private Map<String, Integer> maxStackDepths;
+  private final CompileFileEvent event;
+
+  FileMetrics(String file) {
+    this.file = file;
+    this.nanos = new long[PhaseType.values().length];
+    this.allocated = new long[PhaseType.values().length];
+    this.maxStackDepths = new LinkedHashMap<>();
+    this.event = new CompileFileEvent();
+    this.event.begin();
+    start();
+  }
+
+  public void start() {
+    // restarts the clock, for a phase that does not directly follow the previous one
+    this.lastNanos = System.nanoTime();
+    this.lastAllocated = allocatedBytes();
+  }
+
+  public void lap(PhaseType phase) {
+    long now = System.nanoTime();
+    long bytes = allocatedBytes();
+    this.nanos[phase.ordinal()] += now - this.lastNanos;
+    this.allocated[phase.ordinal()] += bytes - this.lastAllocated;
+    this.lastNanos = now;
+    this.lastAllocated = bytes;
+  }
+
+  public void setUpToDate(boolean upToDate) {
+    this.upToDate = upToDate;
+  }
+
+  public void setTokens(int tokens) {
+    this.tokens = tokens;
+  }
+
+  public void setInstructions(int instructions) {
+    this.instructions = instructions;
+  }
+
+  public void setMaxStackDepths(Map<String, Integer> maxStackDepths) {
+    // function name -> deepest working stack, see VMCode.maxStackDepths()
+    this.maxStackDepths = maxStackDepths;
+  }
+
+  public String toJson() {
+    StringBuilder sb = new StringBuilder("{\"file\":\"");
+    for (char c : this.file.toCharArray()) {
+      if (c == '"' || c == '\\') {
+        sb.append('\\');
+      }
+      sb.append(c);
+    }
+    sb.append("\",\"upToDate\":").append(this.upToDate);
+    for (PhaseType phase : PhaseType.values()) {
+      sb.append(",\"").append(phase.getPhase()).append("Nanos\":").append(this.nanos[phase.ordinal()]);
+    }
+    for (PhaseType phase : PhaseType.values()) {
+      sb.append(",\"").append(phase.getPhase()).append("AllocatedBytes\":").append(this.allocated[phase.ordinal()]);
+    }
+    sb.append(",\"tokens\":").append(this.tokens);
+    sb.append(",\"instructions\":").append(this.instructions);
+    sb.append(",\"maxStackDepth\":{");
+    String separator = "";
+    for (Map.Entry<String, Integer> e : this.maxStackDepths.entrySet()) {
+      sb.append(separator).append('"').append(e.getKey()).append("\":").append(e.getValue());
+      separator = ",";
+    }
+    sb.append('}');
+    return sb.append('}').toString();
+  }
+
+  public void commitEvent() {
+    if (!this.event.shouldCommit()) {
+      return;
+    }
+    this.event.file = this.file;
+    this.event.upToDate = this.upToDate;
+    this.event.readTime = this.nanos[PhaseType.READ.ordinal()];
+    this.event.tokenizeTime = this.nanos[PhaseType.TOKENIZE.ordinal()];
+    this.event.codegenTime = this.nanos[PhaseType.CODEGEN.ordinal()];
+    this.event.writeTime = this.nanos[PhaseType.WRITE.ordinal()];
+    this.event.readAllocated = this.allocated[PhaseType.READ.ordinal()];
+    this.event.tokenizeAllocated = this.allocated[PhaseType.TOKENIZE.ordinal()];
+    this.event.codegenAllocated = this.allocated[PhaseType.CODEGEN.ordinal()];
+    this.event.writeAllocated = this.allocated[PhaseType.WRITE.ordinal()];
+    this.event.tokens = this.tokens;
+    this.event.instructions = this.instructions;
+    this.event.maxStackDepth = this.maxStackDepths.values().stream().mapToInt(Integer::intValue).max().orElse(0);
+    this.event.commit();
+  }
+
+  // Private method
+
+  private static long allocatedBytes() {
+    return allocationSupported ? threads.getCurrentThreadAllocatedBytes() : 0;
+  }
+
+}
@@ -0,0 +1,227 @@
+package nand2tetris;
+
+import nand2tetris.utils.OpcodeType;
+import nand2tetris.utils.SegmentType;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Whole-program inlining of small subroutines.
+ * A call to a function whose body is at most threshold instructions, ends in its only return and cannot reach
+ * itself again is replaced by a copy of that body. The callee's arguments and locals become extra locals of the
+ * caller, its labels are renamed per call site, and the caller's pointer 0 / pointer 1 are saved around the body
+ * when the callee rebinds them (a method binding its receiver to pointer 0, or an array access).
+ */
+public class Inliner {
+
+  static final int DEFAULT_THRESHOLD = 12;
+
+  private final int threshold;
+  private final Map<String, Function> functions;
+  private final Map<String, Integer> report;
+  private int sites;
+
+  Inliner(int threshold) {
+    this.threshold = threshold;
+    this.functions = new HashMap<>();
+    this.report = new LinkedHashMap<>();
+  }
+
+  public List<VMCode> inline(List<VMCode> codes) {
+    for (VMCode code : codes) {
+      int start = -1;
+      for (int i = 0; i <= code.size(); i++) {
+        if (i == code.size() || code.is(i, OpcodeType.FUNCTION)) {
+          if (start >= 0) {
+            Function f = new Function(code, start, i);
+            this.functions.put(f.name, f);
+          }
+          start = i;
+        }
+      }
+    }
+    for (Function f : this.functions.values()) {
+      f.inlinable = f.end - f.start - 2 <= this.threshold && hasSingleTrailingReturn(f) && !reachesItself(f);
+    }
+
+    List<VMCode> result = new ArrayList<>();
+    for (VMCode code : codes) {
+      result.add(rewrite(code));
+    }
+    return result;
+  }
+
+  public String report() {
+    StringBuilder sb = new StringBuilder(String.format("Inlined %d call sites", this.sites));
+    for (Map.Entry<String, Integer> e : this.report.entrySet()) {
+      sb.append(String.format("%n  %s x%d", e.getKey(), e.getValue()));
+    }
+    return sb.toString();
+  }
+
+  // Private method
+
+  private VMCode rewrite(VMCode code) {
+    VMCode out = new VMCode();
+    int functionPos = -1;
+    int nLocals = 0;
+    int extraLocals = 0;
+    Function caller = null;
+    for (int i = 0; i < code.size(); i++) {
+      OpcodeType op = code.getOpcode(i);
+      if (op == OpcodeType.FUNCTION) {
+        patchLocals(out, functionPos, nLocals + extraLocals);
+        caller = this.functions.get(code.getName(i));
+        functionPos = out.size();
+        nLocals = code.getOperand(i);
+        extraLocals = 0;
+      } else if (op == OpcodeType.CALL && caller != null) {
+        Function callee = this.functions.get(code.getName(i));
+        if (callee != null && callee != caller && callee.inlinable
+            && (!callee.usesStatic || callee.className().equals(caller.className()))) {
+          extraLocals = Math.max(extraLocals, expand(out, caller, callee, code.getOperand(i), nLocals));
+          continue;
+        }
+      }
+      out.append(code, i);
+    }
+    patchLocals(out, functionPos, nLocals + extraLocals);
+    return out;
+  }
+
+  private int expand(VMCode out, Function caller, Function callee, int nArgs, int base) {
+    // Stack on entry: ..., arg0, ..., argN-1. Returns how many locals above base the expansion needs.
+    int site = ++this.sites;
+    this.report.merge(caller.name + " <- " + callee.name, 1, Integer::sum);
+    int argBase = base;
+    int localBase = argBase + nArgs;
+    int next = localBase + callee.nLocals;
+    int saveThis = callee.writesPointer0 && caller.readsThis ? next++ : -1;
+    int saveThat = callee.writesPointer1 && caller.readsThat ? next++ : -1;
+
+    for (int a = nArgs - 1; a >= 0; a--) {
+      out.add(OpcodeType.POP, SegmentType.LOCAL.ordinal(), argBase + a);
+    }
+    for (int l = 0; l < callee.nLocals; l++) {
+      out.add(OpcodeType.PUSH, SegmentType.CONST.ordinal(), 0);
+      out.add(OpcodeType.POP, SegmentType.LOCAL.ordinal(), localBase + l);
+    }
+    if (saveThis >= 0) {
+      out.add(OpcodeType.PUSH, SegmentType.POINTER.ordinal(), 0);
+      out.add(OpcodeType.POP, SegmentType.LOCAL.ordinal(), saveThis);
+    }
+    if (saveThat >= 0) {
+      out.add(OpcodeType.PUSH, SegmentType.POINTER.ordinal(), 1);
+      out.add(OpcodeType.POP, SegmentType.LOCAL.ordinal(), saveThat);
+    }
+
+    VMCode body = callee.code;
+    for (int i = callee.start + 1; i < callee.end - 1; i++) {
+      OpcodeType op = body.getOpcode(i);
+      if ((op == OpcodeType.PUSH || op == OpcodeType.POP) && body.getSegment(i) == SegmentType.ARG) {
+        out.add(op, SegmentType.LOCAL.ordinal(), argBase + body.getOperand(i));
+      } else if ((op == OpcodeType.PUSH || op == OpcodeType.POP) && body.getSegment(i) == SegmentType.LOCAL) {
+        out.add(op, SegmentType.LOCAL.ordinal(), localBase + body.getOperand(i));
+      } else if (op == OpcodeType.LABEL || op == OpcodeType.GOTO || op == OpcodeType.IF_GOTO) {
+        out.add(op, out.intern(String.format("L_IN%d_%s", site, body.getName(i))), 0);
+      } else {
+        out.append(body, i);
+      }
+    }
+
+    // the return value stays on top of the stack
+    if (saveThat >= 0) {
+      out.add(OpcodeType.PUSH, SegmentType.LOCAL.ordinal(), saveThat);
+      out.add(OpcodeType.POP, SegmentType.POINTER.ordinal(), 1);
+    }
+    if (saveThis >= 0) {
+      out.add(OpcodeType.PUSH, SegmentType.LOCAL.ordinal(), saveThis);
+      out.add(OpcodeType.POP, SegmentType.POINTER.ordinal(), 0);
+    }
+    return next - base;
+  }
+
+  private void patchLocals(VMCode out, int functionPos, int nLocals) {
+    if (functionPos >= 0) {
+      out.set(functionPos, OpcodeType.FUNCTION, out.getNameId(functionPos), nLocals);
+    }
+  }
+
+  private boolean hasSingleTrailingReturn(Function f) {
+    for (int i = f.start + 1; i < f.end - 1; i++) {
+      if (f.code.is(i, OpcodeType.RETURN)) {
+        return false;
+      }
+    }
+    return f.code.is(f.end - 1, OpcodeType.RETURN);
+  }
+
+  private boolean reachesItself(Function f) {
+    // depth-first over the callees defined in the program
+    Set<String> seen = new HashSet<>();
+    List<Function> work = new ArrayList<>();
+    work.add(f);
+    while (!work.isEmpty()) {
+      Function g = work.remove(work.size() - 1);
+      for (int i = g.start; i < g.end; i++) {
+        if (g.code.is(i, OpcodeType.CALL)) {
+          String callee = g.code.getName(i);
+          if (callee.equals(f.name)) {
+            return true;
+          }
+          Function h = this.functions.get(callee);
+          if (h != null && seen.add(callee)) {
+            work.add(h);
+          }
+        }
+      }
+    }
+    return false;
+  }
+
+  private static final class Function {
+    final VMCode code;
+    final int start;
+    final int end;
+    final String name;
+    final int nLocals;
+    boolean usesStatic;
+    boolean writesPointer0;
+    boolean writesPointer1;
+    boolean readsThis;
+    boolean readsThat;
+    boolean inlinable;
+
+    Function(VMCode code, int start, int end) {
+      this.code = code;
+      this.start = start;
+      this.end = end;
+      this.name = code.getName(start);
+      this.nLocals = code.getOperand(start);
+      for (int i = start + 1; i < end; i++) {
+        OpcodeType op = code.getOpcode(i);
+        if (op != OpcodeType.PUSH && op != OpcodeType.POP) {
+          continue;
+        }
+        SegmentType seg = code.getSegment(i);
+        int idx = code.getOperand(i);
+        this.usesStatic |= seg == SegmentType.STATIC;
+        this.writesPointer0 |= op == OpcodeType.POP && seg == SegmentType.POINTER && idx == 0;
+        this.writesPointer1 |= op == OpcodeType.POP && seg == SegmentType.POINTER && idx == 1;
+        this.readsThis |= seg == SegmentType.THIS || (op == OpcodeType.PUSH && seg == SegmentType.POINTER && idx == 0);
+        this.readsThat |= seg == SegmentType.THAT || (op == OpcodeType.PUSH && seg == SegmentType.POINTER && idx == 1);
+      }
+    }
+
+    String className() {
+      return this.name.substring(0, this.name.indexOf('.'));
+    }
+  }
+
+}
@@ -0,0 +1,80 @@
+package nand2tetris;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Thin command-line front end: takes the same arguments as JackCompiler and hands the build to a running
+ * CompileDaemon, falling back to compiling in this process when no daemon answers.
+ * --socket=PATH picks another daemon than the default one, --stop shuts it down.
+ */
+public class JackClient {
+
+  public static void main(String[] args) throws Exception {
+    Path socket = CompileDaemon.defaultSocket();
+    boolean stop = false;
+    List<String> compilerArgs = new ArrayList<>();
+    for (String arg : args) {
+      if (arg.startsWith("--socket=")) {
+        socket = Path.of(arg.substring("--socket=".length()));
+      } else if (arg.equals("--stop")) {
+        stop = true;
+      } else {
+        compilerArgs.add(arg);
+      }
+    }
+
+    SocketChannel channel;
+    try {
+      channel = SocketChannel.open(UnixDomainSocketAddress.of(socket));
+    } catch (IOException e) {
+      if (stop) {
+        System.err.printf("No daemon listening on %s%n", socket);
+        System.exit(1);
+      }
+      JackCompiler.main(compilerArgs.toArray(new String[0]));
+      return;
+    }
+
+    int status = 1;
+    try (channel) {
+      PrintStream request = new PrintStream(Channels.newOutputStream(channel), false, StandardCharsets.UTF_8);
+      if (stop) {
+        request.printf("%s %s stop%n", CompileDaemon.HEADER, JackCompiler.VERSION);
+      } else {
+        request.printf("%s %s compile%n", CompileDaemon.HEADER, JackCompiler.VERSION);
+        request.printf("cwd\t%s%n", Path.of("").toAbsolutePath());
+        for (String arg : compilerArgs) {
+          request.printf("arg\t%s%n", arg);
+        }
+        request.println("end");
+      }
+      request.flush();
+
+      BufferedReader reply = new BufferedReader(new InputStreamReader(Channels.newInputStream(channel), StandardCharsets.UTF_8));
+      for (String line = reply.readLine(); line != null; line = reply.readLine()) {
+        if (line.startsWith("out\t")) {
+          System.out.println(line.substring("out\t".length()));
+        } else if (line.startsWith("err\t")) {
+          System.err.println(line.substring("err\t".length()));
+        } else if (line.startsWith("exit\t")) {
+          status = Integer.parseInt(line.substring("exit\t".length()));
+          break;
+        }
+      }
+    }
+    if (status != 0) {
+      System.exit(status);
+    }
+  }
+
+}
@@ -1,56 +1,375 @@
 package nand2tetris;
 
+import nand2tetris.utils.PhaseType;
+
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.regex.Pattern;
-import java.util.stream.Collectors;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.stream.Stream;
 
 public class JackCompiler {
-  static Pattern commentPattern = Pattern.compile("(.*)(\\/\\/.*)");
+  static final String VERSION = "1.3.1";
+  private static final long MAP_THRESHOLD = 64 * 1024;
 
   public static void main(String[] args) throws Exception {
+    CompilerOptions options = CompilerOptions.parse(args);
+    if (options.getDaemonSocket() != null) {
+      new CompileDaemon(options.getDaemonSocket()).serve();
+      return;
+    }
+    if (options.isWatch()) {
+      try {
+        compile(options, Path.of(""), System.out);
+      } catch (Exception e) {
+        System.out.println(e.getMessage());
+      }
+      new SourceWatcher(options, Path.of(""), System.out).watch();
+      return;
+    }
+    int status = compile(options, Path.of(""), System.out);
+    if (status != 0) {
+      System.exit(status);
+    }
+  }
 
-    JackTokenizer tokenizer;
-    CompilationEngine engine = new CompilationEngine();
-    List<File> targetFiles = new ArrayList<>();
+  static int compile(CompilerOptions options, Path workingDir, PrintStream out) throws Exception {
+    // Relative inputs and outputs resolve against workingDir, and reports go to out, so the daemon can run
+    // builds for clients in other directories.
+    List<File> targetFiles = targetFiles(options, workingDir);
+    if (targetFiles == null) {
+      out.println("The file is not .jack file");
+      return 1;
+    }
 
-    if (args.length != 1) {
-      File workingDir = new File("./");
-      for (String fileName : workingDir.list()) {
-        int lastDotPos = fileName.lastIndexOf('.');
-        if (lastDotPos != 1 && fileName.substring(lastDotPos + 1).equals("jack")) {
-          targetFiles.add(new File(fileName.substring(0, lastDotPos)));
+    CompileMetrics metrics = CompileMetrics.create(options, workingDir, out);
+    if (options.isWholeProgram()) {
+      // every project directory is a program of its own
+      Map<Path, List<File>> programs = new LinkedHashMap<>();
+      for (File targetFile : targetFiles) {
+        programs.computeIfAbsent(outputDir(targetFile), dir -> new ArrayList<>()).add(targetFile);
+      }
+      for (List<File> program : programs.values()) {
+        compileWholeProgram(program, options, metrics, out);
+      }
+      if (metrics != null) {
+        metrics.close();
+      }
+      return 0;
+    }
+
+    // one build cache per output directory
+    Map<Path, BuildCache> caches = new LinkedHashMap<>();
+    if (options.isIncremental()) {
+      for (File targetFile : targetFiles) {
+        Path dir = outputDir(targetFile);
+        if (!caches.containsKey(dir)) {
+          caches.put(dir, new BuildCache(dir, VERSION + "/" + options.getCodegenKey()));
         }
       }
+    }
+
+    long start = System.nanoTime();
+    List<Exception> failures;
+    if (options.isPipeline()) {
+      CompilePipeline pipeline = new CompilePipeline(options, caches, metrics);
+      failures = pipeline.run(targetFiles);
+      out.println(pipeline.report());
     } else {
-      String inputFile = args[0];
-      int lastDotPos = inputFile.lastIndexOf('.');
-      if (lastDotPos == -1) {
-        System.out.println("The file is not .jack file");
-        System.exit(1);
+      failures = forEachFile(targetFiles, options, (engine, targetFile) -> {
+        try {
+          compileFile(engine, targetFile, options, caches.get(outputDir(targetFile)), metrics);
+          return null;
+        } catch (Exception e) {
+          return e;
+        }
+      });
+    }
+    long elapsed = System.nanoTime() - start;
+    if (metrics != null) {
+      metrics.close();
+    }
+
+    if (!caches.isEmpty()) {
+      int hits = 0;
+      int misses = 0;
+      for (BuildCache cache : caches.values()) {
+        cache.save();
+        hits += cache.getHits();
+        misses += cache.getMisses();
+      }
+      out.printf("Incremental build: %d up to date, %d compiled%n", hits, misses);
+    }
+
+    int failed = 0;
+    for (int i = 0; i < targetFiles.size(); i++) {
+      Exception failure = failures.get(i);
+      if (failure != null) {
+        failed += 1;
+        out.printf("FAILED %s.jack: %s%n", targetFiles.get(i), failure.getMessage());
       }
-      targetFiles.add(new File(inputFile));
     }
+    if (targetFiles.size() > 1 || failed > 0) {
+      out.printf("Batch: %d files in %d directories, %.1f ms, %d failed%n", targetFiles.size(),
+          targetFiles.stream().map(JackCompiler::outputDir).distinct().count(), elapsed / 1e6, failed);
+    }
+    return failed == 0 ? 0 : 1;
+  }
+
+  static void compileFile(CompilationEngine engine, File targetFile, CompilerOptions options, BuildCache cache,
+                          CompileMetrics metrics) throws Exception {
+    Path source = Path.of(String.format("%s.jack", targetFile));
+    Path output = Path.of(String.format("%s.vm", targetFile));
+    FileMetrics fileMetrics = metrics == null ? null : metrics.start(source);
+    // a streamed source is only read up front when the build cache needs its hash
+    ByteBuffer sourceBytes = options.isStreaming() && cache == null ? null : readSource(source);
+    boolean upToDate = cache != null && cache.isUpToDate(source, sourceBytes, output);
+    if (fileMetrics != null) {
+      fileMetrics.lap(PhaseType.READ);
+      fileMetrics.setUpToDate(upToDate);
+    }
+    if (upToDate) {
+      if (fileMetrics != null) {
+        metrics.finish(fileMetrics);
+      }
+      return;
+    }
+    VMCode code;
+    if (sourceBytes == null) {
+      try (FileChannel channel = FileChannel.open(source, StandardOpenOption.READ)) {
+        code = compileCode(engine, new JackTokenizer(channel), fileMetrics);
+      }
+    } else {
+      code = compileCode(engine, sourceBytes, fileMetrics);
+    }
+    if (options.isPeephole()) {
+      new PeepholeOptimizer().optimize(code);
+    }
+    if (fileMetrics != null) {
+      fileMetrics.lap(PhaseType.CODEGEN);
+    }
+    writeCode(code, output);
 
+    if (cache != null) {
+      cache.record(source, sourceBytes, output);
+    }
+    if (fileMetrics != null) {
+      fileMetrics.lap(PhaseType.WRITE);
+      fileMetrics.setInstructions(code.size());
+      fileMetrics.setMaxStackDepths(code.maxStackDepths());
+      metrics.finish(fileMetrics);
+    }
+  }
 
-    for (File targetFile : targetFiles) {
-      try (BufferedReader reader = new BufferedReader(new FileReader(String.format("%s.jack", targetFile)))) {
-        tokenizer = new JackTokenizer(reader.lines().collect(Collectors.toList()));
+  static void compileWholeProgram(List<File> targetFiles, CompilerOptions options, CompileMetrics metrics,
+                                  PrintStream out) throws Exception {
+    // All classes are compiled to VMCode first, so the call graph of the whole program is known before anything
+    // is written.
+    Map<File, FileMetrics> fileMetrics = new ConcurrentHashMap<>();
+    List<VMCode> codes = forEachFile(targetFiles, options, (engine, targetFile) -> {
+      Path source = Path.of(String.format("%s.jack", targetFile));
+      FileMetrics m = metrics == null ? null : metrics.start(source);
+      ByteBuffer sourceBytes = readSource(source);
+      if (m != null) {
+        m.lap(PhaseType.READ);
+        fileMetrics.put(targetFile, m);
       }
+      return compileCode(engine, sourceBytes, m);
+    });
 
-      try (BufferedWriter writer = new BufferedWriter(new FileWriter(String.format("%s.vm", targetFile)))) {
+    if (options.getInlineThreshold() > 0) {
+      Inliner inliner = new Inliner(options.getInlineThreshold());
+      codes = inliner.inline(codes);
+      out.println(inliner.report());
+    }
 
-        engine.setUp(tokenizer, writer);
-        engine.compileClass();
+    DeadCodeEliminator dce = new DeadCodeEliminator();
+    dce.eliminate(codes);
+    out.println(dce.report());
 
-      } catch (IOException e) {
-        e.printStackTrace();
+    for (int i = 0; i < targetFiles.size(); i++) {
+      FileMetrics m = fileMetrics.get(targetFiles.get(i));
+      if (m != null) {
+        m.start();
+      }
+      if (options.isPeephole()) {
+        new PeepholeOptimizer().optimize(codes.get(i));
       }
+      if (m != null) {
+        m.lap(PhaseType.CODEGEN);
+      }
+      writeCode(codes.get(i), Path.of(String.format("%s.vm", targetFiles.get(i))));
+      if (m != null) {
+        m.lap(PhaseType.WRITE);
+        m.setInstructions(codes.get(i).size());
+        m.setMaxStackDepths(codes.get(i).maxStackDepths());
+        metrics.finish(m);
+      }
+    }
+  }
 
+  static VMCode compileCode(CompilationEngine engine, ByteBuffer sourceBytes) throws Exception {
+    return compileCode(engine, sourceBytes, null);
+  }
 
+  static VMCode compileCode(CompilationEngine engine, ByteBuffer sourceBytes, FileMetrics metrics) throws Exception {
+    JackTokenizer tokenizer = new JackTokenizer(sourceBytes);
+    if (metrics != null) {
+      metrics.lap(PhaseType.TOKENIZE);
     }
+    return compileCode(engine, tokenizer, metrics);
+  }
+
+  static VMCode compileCode(CompilationEngine engine, JackTokenizer tokenizer, FileMetrics metrics) throws Exception {
+    // a streaming tokenizer scans while the engine runs, so its time is part of codegen
+    VMCode code = new VMCode();
+    engine.setUp(tokenizer, code);
+    engine.compileClass();
+    if (metrics != null) {
+      metrics.lap(PhaseType.CODEGEN);
+      metrics.setTokens(tokenizer.getTokenCount());
+    }
+    return code;
+  }
+
+  static void writeCode(VMCode code, Path output) throws Exception {
+    // a failed write fails the file, so it is never recorded in the build cache as up to date
+    try (FileChannel writer = FileChannel.open(output, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+
+      new VMTextSerializer(writer).write(code);
+
+    } catch (IOException e) {
+      throw new Exception(String.format("Cannot write [%s]: %s !!", output, e.getMessage()), e);
+    }
+  }
+
+  static <T> List<T> forEachFile(List<File> targetFiles, CompilerOptions options, FileJob<T> job) throws Exception {
+    // Sequentially on one engine, or with -j on a work-stealing fork-join pool with one engine per class. Results
+    // come back in input order, and so does the first failure, as a sequential run would report it.
+    List<T> results = new ArrayList<>();
+    if (options.getJobs() <= 1 || targetFiles.size() <= 1) {
+      CompilationEngine engine = new CompilationEngine(options);
+      for (File targetFile : targetFiles) {
+        results.add(job.run(engine, targetFile));
+      }
+      return results;
+    }
+
+    List<Integer> order = largestFirst(targetFiles);
+    ForkJoinPool pool = new ForkJoinPool(options.getJobs());
+    try {
+      List<ForkJoinTask<T>> tasks = new ArrayList<>(Collections.nCopies(targetFiles.size(), null));
+      for (int i : order) {
+        File targetFile = targetFiles.get(i);
+        tasks.set(i, pool.submit(ForkJoinTask.adapt(() -> job.run(new CompilationEngine(options), targetFile))));
+      }
+      for (ForkJoinTask<T> task : tasks) {
+        try {
+          results.add(task.get());
+        } catch (ExecutionException e) {
+          throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
+      }
+    } finally {
+      pool.shutdown();
+    }
+    return results;
+  }
+
+  static List<Integer> largestFirst(List<File> targetFiles) {
+    // indices of targetFiles, largest source first, so a big file does not start last and hold up the end of a
+    // parallel build
+    List<Integer> order = new ArrayList<>();
+    long[] sizes = new long[targetFiles.size()];
+    for (int i = 0; i < targetFiles.size(); i++) {
+      order.add(i);
+      sizes[i] = new File(String.format("%s.jack", targetFiles.get(i))).length();
+    }
+    order.sort((a, b) -> Long.compare(sizes[b], sizes[a]));
+    return order;
+  }
+
+  static ByteBuffer readSource(Path source) throws IOException {
+    // Large sources are memory-mapped and scanned in place; for small ones a single read is cheaper than a mapping.
+    try (FileChannel channel = FileChannel.open(source, StandardOpenOption.READ)) {
+      long size = channel.size();
+      if (size >= MAP_THRESHOLD) {
+        return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+      }
+      ByteBuffer buf = ByteBuffer.allocate((int) size);
+      while (buf.hasRemaining() && channel.read(buf) >= 0) {
+        // keep reading until the whole file is in
+      }
+      return buf.flip();
+    }
+  }
+
+  static Path outputDir(File targetFile) {
+    Path parent = targetFile.getAbsoluteFile().toPath().getParent();
+    return parent == null ? Path.of(".") : parent;
+  }
+
+  // Private method
+
+  private static List<File> targetFiles(CompilerOptions options, Path workingDir) throws Exception {
+    // No argument compiles the .jack files of the working directory. Otherwise every argument is a .jack file
+    // (with or without its extension) or a root directory that is walked recursively. Returns null for an argument
+    // that is neither.
+    List<File> targetFiles = new ArrayList<>();
+    if (options.getInputs().isEmpty()) {
+      String[] fileNames = workingDir.toAbsolutePath().toFile().list();
+      if (fileNames == null) {
+        throw new Exception(String.format("Cannot read directory [%s] !!", workingDir.toAbsolutePath()));
+      }
+      Arrays.sort(fileNames);
+      for (String fileName : fileNames) {
+        int lastDotPos = fileName.lastIndexOf('.');
+        if (lastDotPos != -1 && fileName.substring(lastDotPos + 1).equals("jack")) {
+          targetFiles.add(workingDir.resolve(fileName.substring(0, lastDotPos)).toFile());
+        }
+      }
+      return targetFiles;
+    }
+
+    for (String input : options.getInputs()) {
+      Path path = workingDir.resolve(input);
+      if (Files.isDirectory(path)) {
+        try (Stream<Path> walk = Files.walk(path)) {
+          walk.filter(p -> p.getFileName().toString().endsWith(".jack") && Files.isRegularFile(p))
+              .sorted()
+              .forEach(p -> targetFiles.add(stripExtension(p).toFile()));
+        }
+      } else if (input.endsWith(".jack")) {
+        targetFiles.add(stripExtension(path).toFile());
+      } else if (Files.isRegularFile(workingDir.resolve(input + ".jack"))) {
+        // the class name alone, as earlier versions expected it
+        targetFiles.add(path.toFile());
+      } else {
+        return null;
+      }
+    }
+    return targetFiles;
+  }
+
+  private static Path stripExtension(Path source) {
+    String name = source.toString();
+    return Path.of(name.substring(0, name.length() - ".jack".length()));
+  }
 
+  interface FileJob<T> {
+    T run(CompilationEngine engine, File targetFile) throws Exception;
   }
 
 }
\ No newline at end of file
@@ -1,179 +1,421 @@
 package nand2tetris;
 
+import nand2tetris.utils.KeywordType;
+import nand2tetris.utils.SymbolType;
 import nand2tetris.utils.TokenType;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
-import java.util.List;
-import java.util.Set;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
 
 public class JackTokenizer {
 
-  private static final Pattern symbolsPattern = Pattern.compile("([^\\{\\}\\(\\)\\[\\]\\.,;\\+\\-\\*\\/&\\|<>=~]*)([\\{\\}\\(\\)\\[\\]\\.,;\\+\\-\\*\\/&\\|<>=~])([^\\{\\}\\(\\)\\[\\]\\.,;\\+\\-\\*\\/&\\|<>=~]*)");
-  private static final Pattern stringLiteralPattern = Pattern.compile("\".*?\"");
-  private static final Pattern COMMENT_PATTERN_1 = Pattern.compile("(.*)(\\/\\/)(.*)");
-  private static final Pattern COMMENT_PATTERN_2 = Pattern.compile("(.*)(\\/\\*\\*)(.*)");
-  //  private static final Pattern COMMENT_PATTERN_3 = Pattern.compile("(.*)(\\*)(.*)");
-  private static final Pattern COMMENT_PATTERN_3 = Pattern.compile("(.*)(\\*\\/)(.*)");
-  private static final Pattern isDigit = Pattern.compile("^\\d+$");
-
-  private static final Set<String> keywordsSet = Stream.of(
-      "class", "constructor", "function", "method", "field", "static",
-      "var", "int", "char", "boolean", "void", "true", "false", "null",
-      "this", "let", "do", "if", "else", "while", "return"
-  ).collect(Collectors.toSet());
-
-  private static final Set<String> symbolsSet = Stream.of(
-      "{", "}", "(", ")", "[", "]",
-      ".", ",", ";", "+", "-", "*", "/", "&", "|", "<", ">", "=", "~"
-  ).collect(Collectors.toSet());
-  List<String> tokenized;
+  private static final TokenType[] tokenTypes = TokenType.values();
+  private static final KeywordType[] keywordTypes = KeywordType.values();
+  private static final SymbolType[] symbolTypes = SymbolType.values();
+  // streaming mode: tokens kept around the current one, and the initial size of the source window
+  private static final int TOKEN_WINDOW = 4;
+  private static final int STREAM_BUFFER_SIZE = 1 << 13;
+
+  // Jack source is ASCII, so the scanner reads bytes straight out of the (usually memory-mapped) input buffer.
+  // In streaming mode src is a window over the input that starts at offset base; token offsets stay absolute.
+  private ByteBuffer src;
+  private final ReadableByteChannel channel;
+  private int base;
+  private int limit;
+  private boolean eof;
+  // first offset the window must keep while scanning, and where the next scan starts
+  private int keepFrom;
+  private int scanPos;
+  // streaming mode: number of the token that advance() makes current next
+  private int nextToken;
+  // a fork is a second cursor over another tokenizer's tokens; it does not cache token text
+  private final boolean forked;
+  // Every token is a slice of src. Classified once while scanning: kinds holds the TokenType ordinal of each
+  // token, codes holds the KeywordType/SymbolType ordinal or the integer value of an integerConstant.
+  private int[] starts;
+  private int[] lengths;
+  private byte[] kinds;
+  private int[] codes;
+  private int tokenCount;
+  // Token text is only materialized on demand; identifiers are interned so repeated names share one String.
+  private String[] texts;
+  private String[] internTable;
+  private int internCount;
   private int currentPos = -1;
 
-  JackTokenizer(List<String> input) {
+  JackTokenizer(ByteBuffer source) throws Exception {
+    this.src = source;
+    this.channel = null;
+    this.forked = false;
+    this.limit = source.limit();
+    int capacity = Math.max(16, source.limit() / 4);
+    this.starts = new int[capacity];
+    this.lengths = new int[capacity];
+    this.kinds = new byte[capacity];
+    this.codes = new int[capacity];
+    scan();
+    // trimmed so that reading past the last token fails instead of yielding a stale kind
+    this.kinds = Arrays.copyOf(this.kinds, this.tokenCount);
+    this.codes = Arrays.copyOf(this.codes, this.tokenCount);
+  }
 
-    String tokenizedCode = "";
-    for (String line : input) {
-      line = preProcessor(line);
-      if (line.isBlank() || line.isEmpty()) {
-        continue;
-      }
-      tokenizedCode += lineProcesssor(line);
-    }
-    this.tokenized = Arrays.asList(tokenizedCode.split("\n"));
+  JackTokenizer(CharSequence source) throws Exception {
+    this(ByteBuffer.wrap(source.toString().getBytes(StandardCharsets.US_ASCII)));
+  }
+
+  JackTokenizer(ReadableByteChannel channel) {
+    // Streaming mode: tokens are scanned one at a time as the engine advances, out of a small window that is
+    // refilled from the channel, so memory does not grow with the size of the source. The token arrays are a
+    // ring of TOKEN_WINDOW entries and getTokenCount() is the number of tokens scanned so far.
+    this.src = ByteBuffer.allocate(STREAM_BUFFER_SIZE);
+    this.channel = channel;
+    this.forked = false;
+    this.starts = new int[TOKEN_WINDOW];
+    this.lengths = new int[TOKEN_WINDOW];
+    this.kinds = new byte[TOKEN_WINDOW];
+    this.codes = new int[TOKEN_WINDOW];
+    this.texts = new String[TOKEN_WINDOW];
+  }
+
+  private JackTokenizer(JackTokenizer other) {
+    this.src = other.src;
+    this.channel = null;
+    this.forked = true;
+    this.limit = other.limit;
+    this.starts = other.starts;
+    this.lengths = other.lengths;
+    this.kinds = other.kinds;
+    this.codes = other.codes;
+    this.tokenCount = other.tokenCount;
+  }
+
+  public JackTokenizer fork() {
+    // Another cursor over the same scanned tokens, for compiling part of a class on another thread. The token
+    // arrays are shared read-only; texts are decoded and interned per fork.
+    return new JackTokenizer(this);
+  }
+
+  public boolean isSeekable() {
+    // only a fully scanned source can be revisited
+    return this.channel == null;
+  }
+
+  public int getPosition() {
+    return currentPos;
+  }
 
+  public void seek(int pos) {
+    this.currentPos = pos;
   }
 
-  public boolean hasMoreTokens() {
-    return currentPos < tokenized.size();
+  public boolean hasMoreTokens() throws Exception {
+    if (this.channel != null) {
+      return this.nextToken < this.tokenCount || scanToken();
+    }
+    return currentPos < tokenCount;
   }
 
-  public int advance() {
+  public int advance() throws Exception {
+    if (this.channel != null) {
+      // the current token is done with, so the window may drop it while the next one is scanned
+      this.currentPos = -1;
+      if (this.nextToken == this.tokenCount && !scanToken()) {
+        this.currentPos = TOKEN_WINDOW;
+        return this.currentPos;
+      }
+      this.currentPos = this.nextToken & (TOKEN_WINDOW - 1);
+      this.nextToken += 1;
+      return this.currentPos;
+    }
     this.currentPos += 1;
     return this.currentPos;
   }
 
-  public TokenType tokenType(String token) {
-    if (keywordsSet.contains(token)) {
-      return TokenType.KEY_WORD;
-    } else if (symbolsSet.contains(token)) {
-      return TokenType.SYMBOL;
-    } else if (isDigit.matcher(token).find()) {
-      return TokenType.INT_CONST;
-    } else if (token.startsWith("\"") && token.endsWith("\"")) {
-      return TokenType.STRING_CONST;
-    } else {
-      return TokenType.IDENTIFIER;
-    }
+  public int getTokenCount() {
+    return tokenCount;
   }
 
-  public String getKeyword() throws Exception {
-    if (tokenType(this.tokenized.get(currentPos)) != TokenType.KEY_WORD) {
-      throw new Exception(String.format("This token [%s] is not a keyword !!", tokenized.get(currentPos)));
+  public KeywordType getKeyword() throws Exception {
+    if (this.kinds[currentPos] != TokenType.KEY_WORD.ordinal()) {
+      throw new Exception(String.format("This token [%s] is not a keyword !!", tokenText(currentPos)));
     }
-    return this.tokenized.get(currentPos);
+    return keywordTypes[this.codes[currentPos]];
   }
 
-  public String getSymbol() throws Exception {
-    if (tokenType(this.tokenized.get(currentPos)) != TokenType.SYMBOL) {
-      throw new Exception(String.format("This token [%s] is not a symbol !!", tokenized.get(currentPos)));
+  public SymbolType getSymbol() throws Exception {
+    if (this.kinds[currentPos] != TokenType.SYMBOL.ordinal()) {
+      throw new Exception(String.format("This token [%s] is not a symbol !!", tokenText(currentPos)));
     }
-    return this.tokenized.get(currentPos);
+    return symbolTypes[this.codes[currentPos]];
   }
 
   public String getIdentifier() throws Exception {
-    if (tokenType(this.tokenized.get(currentPos)) != TokenType.IDENTIFIER) {
-      throw new Exception(String.format("This token [%s] is not an identifier !!", tokenized.get(currentPos)));
+    if (this.kinds[currentPos] != TokenType.IDENTIFIER.ordinal()) {
+      throw new Exception(String.format("This token [%s] is not an identifier !!", tokenText(currentPos)));
     }
-    return this.tokenized.get(currentPos);
+    return tokenText(currentPos);
   }
 
   public int getIntVal() throws Exception {
-    if (tokenType(this.tokenized.get(currentPos)) != TokenType.INT_CONST) {
+    if (this.kinds[currentPos] != TokenType.INT_CONST.ordinal()) {
       throw new Exception("This token is not an integer value!!");
     }
-    return Integer.parseInt(this.tokenized.get(currentPos));
+    return this.codes[currentPos];
   }
 
   public String getStringVal() throws Exception {
-    if (tokenType(this.tokenized.get(currentPos)) != TokenType.STRING_CONST) {
-      throw new Exception(String.format("This token [%s] is not a string value!!", tokenized.get(currentPos)));
+    // the slice excludes the surrounding quotes
+    if (this.kinds[currentPos] != TokenType.STRING_CONST.ordinal()) {
+      throw new Exception(String.format("This token [%s] is not a string value!!", tokenText(currentPos)));
     }
-    return this.tokenized.get(currentPos);
+    return tokenText(currentPos);
   }
 
   public TokenType getTokenType() {
-    return tokenType(this.tokenized.get(currentPos));
+    return tokenTypes[this.kinds[currentPos]];
   }
 
   public String getTagType() {
-    return tokenType(this.tokenized.get(currentPos)).getTag();
+    return getTokenType().getTag();
+  }
+
+  public boolean isKeyword(KeywordType kt) {
+    return this.kinds[currentPos] == TokenType.KEY_WORD.ordinal() && this.codes[currentPos] == kt.ordinal();
+  }
+
+  public boolean isSymbol(SymbolType st) {
+    return this.kinds[currentPos] == TokenType.SYMBOL.ordinal() && this.codes[currentPos] == st.ordinal();
   }
 
 
   // Private method
 
-  private String preProcessor(String line) {
-    line = line.trim();
-    if (line.startsWith("*")) {
-      return "";
+  private void scan() throws Exception {
+    // Single pass over the source: every byte is visited once and each token is recorded as an offset/length slice.
+    while (scanToken()) {
+      // every call records one token
     }
-    Matcher matcher1 = COMMENT_PATTERN_1.matcher(line);
-    if (matcher1.find()) {
-      line = matcher1.group(1).trim();
+  }
+
+  private boolean scanToken() throws Exception {
+    // Scans from scanPos through the next token; false at the end of the input.
+    int pos = this.scanPos;
+    while (true) {
+      this.keepFrom = pos;
+      if (!has(pos)) {
+        this.scanPos = pos;
+        return false;
+      }
+      char c = (char) (byteAt(pos) & 0xff);
+      if (c == ' ' || c == '\n' || c == '\r' || c == '\t' || c == '\f') {
+        pos += 1;
+      } else if (c == '/' && has(pos + 1) && byteAt(pos + 1) == '/') {
+        // line comment: // ...
+        pos += 2;
+        while (has(pos) && byteAt(pos) != '\n') {
+          pos += 1;
+          this.keepFrom = pos;
+        }
+      } else if (c == '/' && has(pos + 1) && byteAt(pos + 1) == '*') {
+        // block comment: /* ... */ and /** ... */, possibly spanning lines
+        int close = pos + 2;
+        while (has(close + 1) && (byteAt(close) != '*' || byteAt(close + 1) != '/')) {
+          close += 1;
+          this.keepFrom = close;
+        }
+        if (!has(close + 1)) {
+          throw new Exception("Unterminated comment !!");
+        }
+        pos = close + 2;
+      } else if (c == '"') {
+        // string literal
+        int close = pos + 1;
+        while (has(close) && byteAt(close) != '"' && byteAt(close) != '\n') {
+          close += 1;
+        }
+        if (!has(close) || byteAt(close) != '"') {
+          throw new Exception("Unterminated string constant !!");
+        }
+        addToken(pos + 1, close - pos - 1, TokenType.STRING_CONST, 0);
+        this.scanPos = close + 1;
+        return true;
+      } else if (SymbolType.getEnum(c) != null) {
+        addToken(pos, 1, TokenType.SYMBOL, SymbolType.getEnum(c).ordinal());
+        this.scanPos = pos + 1;
+        return true;
+      } else if (isWordChar(c)) {
+        // keyword, identifier or integer constant
+        int end = pos + 1;
+        while (has(end) && isWordChar((char) (byteAt(end) & 0xff))) {
+          end += 1;
+        }
+        addWord(pos, end - pos);
+        this.scanPos = end;
+        return true;
+      } else {
+        throw new Exception(String.format("Unexpected character [%c] !!", c));
+      }
     }
-    Matcher matcher2 = COMMENT_PATTERN_2.matcher(line);
-    if (matcher2.find()) {
-      line = matcher2.group(1).trim();
+  }
+
+  private boolean has(int pos) throws IOException {
+    return pos < this.limit || fill(pos);
+  }
+
+  private byte byteAt(int pos) {
+    return this.src.get(pos - this.base);
+  }
+
+  private boolean fill(int pos) throws IOException {
+    // Streaming mode: slides the window past what is no longer needed and reads until pos is in it.
+    if (this.channel == null) {
+      return false;
     }
-    Matcher matcher3 = COMMENT_PATTERN_3.matcher(line);
-    if (matcher3.find()) {
-      line = matcher3.group(1).trim();
+    while (pos >= this.limit && !this.eof) {
+      int keep = this.keepFrom;
+      if (this.currentPos >= 0 && this.currentPos < TOKEN_WINDOW) {
+        keep = Math.min(keep, this.starts[this.currentPos]);
+      }
+      int used = this.limit - keep;
+      ByteBuffer window = used == this.src.capacity() ? ByteBuffer.allocate(this.src.capacity() * 2) : this.src;
+      window.clear();
+      window.put(this.src.array(), keep - this.base, used);
+      this.src = window;
+      this.base = keep;
+      int n = this.channel.read(this.src);
+      if (n < 0) {
+        this.eof = true;
+      } else {
+        this.limit += n;
+      }
     }
+    return pos < this.limit;
+  }
 
-    return line;
+  private void addWord(int start, int length) throws Exception {
+    byte first = byteAt(start);
+    if (first >= '0' && first <= '9') {
+      int value = 0;
+      for (int i = start; i < start + length; i++) {
+        byte b = byteAt(i);
+        if (b < '0' || b > '9' || value > (Integer.MAX_VALUE - (b - '0')) / 10) {
+          throw new Exception(String.format("This token [%s] is not a valid word !!", decode(start, length)));
+        }
+        value = value * 10 + (b - '0');
+      }
+      addToken(start, length, TokenType.INT_CONST, value);
+      return;
+    }
+    KeywordType kt = KeywordType.getEnum(this.src, start - this.base, length);
+    if (kt != null) {
+      addToken(start, length, TokenType.KEY_WORD, kt.ordinal());
+    } else {
+      addToken(start, length, TokenType.IDENTIFIER, 0);
+    }
   }
 
+  private void addToken(int start, int length, TokenType kind, int code) {
+    int idx = this.tokenCount;
+    if (this.channel != null) {
+      idx &= TOKEN_WINDOW - 1;
+      this.texts[idx] = null;
+    } else if (idx == this.kinds.length) {
+      this.starts = Arrays.copyOf(this.starts, idx * 2);
+      this.lengths = Arrays.copyOf(this.lengths, idx * 2);
+      this.kinds = Arrays.copyOf(this.kinds, idx * 2);
+      this.codes = Arrays.copyOf(this.codes, idx * 2);
+    }
+    this.starts[idx] = start;
+    this.lengths[idx] = length;
+    this.kinds[idx] = (byte) kind.ordinal();
+    this.codes[idx] = code;
+    this.tokenCount += 1;
+  }
 
-  private String lineProcesssor(String line) {
-    String out = "";
+  private String tokenText(int idx) {
+    if (this.forked) {
+      return this.kinds[idx] == TokenType.IDENTIFIER.ordinal()
+          ? intern(this.starts[idx], this.lengths[idx])
+          : decode(this.starts[idx], this.lengths[idx]);
+    }
+    if (this.texts == null) {
+      this.texts = new String[this.tokenCount];
+    }
+    String text = this.texts[idx];
+    if (text == null) {
+      text = this.kinds[idx] == TokenType.IDENTIFIER.ordinal()
+          ? intern(this.starts[idx], this.lengths[idx])
+          : decode(this.starts[idx], this.lengths[idx]);
+      this.texts[idx] = text;
+    }
+    return text;
+  }
 
-    Matcher stringConstMatcher = stringLiteralPattern.matcher(line);
-    if (stringConstMatcher.find()) {
-      int start = stringConstMatcher.start();
-      int end = stringConstMatcher.end();
-      out += lineProcesssor(line.substring(0, start));
-      out += line.substring(start, end - 1);
-      out += lineProcesssor(line.substring(end - 1));
-      return out;
+  private String intern(int start, int length) {
+    // open addressing over the raw bytes, so a name is decoded only the first time it is asked for
+    if (this.internTable == null || this.internCount * 2 >= this.internTable.length) {
+      String[] old = this.internTable;
+      this.internTable = new String[old == null ? 64 : old.length * 2];
+      this.internCount = 0;
+      if (old != null) {
+        for (String s : old) {
+          if (s != null) {
+            insertInterned(s, s.hashCode());
+          }
+        }
+      }
+    }
+    int hash = 0;
+    for (int i = start; i < start + length; i++) {
+      hash = 31 * hash + (byteAt(i) & 0xff);
     }
+    int mask = this.internTable.length - 1;
+    for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+      String s = this.internTable[slot];
+      if (s == null) {
+        s = decode(start, length);
+        this.internTable[slot] = s;
+        this.internCount += 1;
+        return s;
+      }
+      if (s.hashCode() == hash && sameBytes(s, start, length)) {
+        return s;
+      }
+    }
+  }
 
-    String[] words = line.split("\\s+");
-    for (String word : words) {
-      out += wordProcessor(word);
+  private void insertInterned(String s, int hash) {
+    int mask = this.internTable.length - 1;
+    int slot = hash & mask;
+    while (this.internTable[slot] != null) {
+      slot = (slot + 1) & mask;
     }
-    return out;
+    this.internTable[slot] = s;
+    this.internCount += 1;
   }
 
-  private String wordProcessor(String word) {
-    if (word == null || word.isBlank()) {
-      return "";
+  private boolean sameBytes(String s, int start, int length) {
+    if (s.length() != length) {
+      return false;
     }
-    Matcher symbolsMatcher = symbolsPattern.matcher(word);
-    if (!symbolsMatcher.find()) {
-      return word + "\n";
+    for (int i = 0; i < length; i++) {
+      if (s.charAt(i) != (char) (byteAt(start + i) & 0xff)) {
+        return false;
+      }
     }
+    return true;
+  }
 
-    String out = "";
-    do {
-      out += wordProcessor(symbolsMatcher.group(1));
-      out += symbolsMatcher.group(2) + "\n";
-      out += wordProcessor(symbolsMatcher.group(3));
+  private String decode(int start, int length) {
+    byte[] bytes = new byte[length];
+    this.src.get(start - this.base, bytes);
+    return new String(bytes, StandardCharsets.US_ASCII);
+  }
 
-    } while (symbolsMatcher.find());
-    return out;
+  private static boolean isWordChar(char c) {
+    return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_';
   }
 }
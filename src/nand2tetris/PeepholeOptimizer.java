@@ -0,0 +1,241 @@
+package nand2tetris;
+
+import nand2tetris.utils.OpcodeType;
+import nand2tetris.utils.SegmentType;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Deque;
+
+/**
+ * Local clean-up of the code CompilationEngine generates, run over a VMCode buffer until nothing changes.
+ * <ul>
+ *   <li>runs of labels collapse into one, and labels nobody jumps to are dropped</li>
+ *   <li>a sliding window over the tail of the output removes goto-to-next-label, push X/pop X, not/not,
+ *   constant conditions in front of if-goto and code that can never run after goto/return</li>
+ *   <li>the temp 0/temp 1 spill around an array read is dropped when the saved pointer 1 is overwritten
+ *   before anything reads that again</li>
+ * </ul>
+ */
+public class PeepholeOptimizer {
+
+  // how far the liveness search for pointer 1 may wander before it gives up and keeps the spill
+  private static final int LIVENESS_BUDGET = 256;
+
+  public int optimize(VMCode code) {
+    int before = code.size();
+    boolean changed = true;
+    while (changed) {
+      changed = mergeLabels(code);
+      changed |= slide(code);
+      changed |= dropUnusedLabels(code);
+      changed |= dropArrayReadSpills(code);
+    }
+    return before - code.size();
+  }
+
+  // Private method
+
+  private boolean mergeLabels(VMCode code) {
+    // label A; label B  ->  label B, with every jump to A redirected to B
+    int[] alias = new int[code.getNameCount()];
+    Arrays.fill(alias, -1);
+    boolean found = false;
+    for (int i = code.size() - 2; i >= 0; i--) {
+      if (code.is(i, OpcodeType.LABEL) && code.is(i + 1, OpcodeType.LABEL)) {
+        int next = code.getNameId(i + 1);
+        alias[code.getNameId(i)] = alias[next] == -1 ? next : alias[next];
+        found = true;
+      }
+    }
+    if (!found) {
+      return false;
+    }
+    int w = 0;
+    for (int r = 0; r < code.size(); r++) {
+      OpcodeType op = code.getOpcode(r);
+      if (op == OpcodeType.LABEL && alias[code.getNameId(r)] != -1) {
+        continue;
+      }
+      code.copy(r, w);
+      if ((op == OpcodeType.GOTO || op == OpcodeType.IF_GOTO) && alias[code.getNameId(w)] != -1) {
+        code.set(w, op, alias[code.getNameId(w)], 0);
+      }
+      w += 1;
+    }
+    code.truncate(w);
+    return true;
+  }
+
+  private boolean slide(VMCode code) {
+    int size = code.size();
+    int w = 0;
+    for (int r = 0; r < size; r++) {
+      code.copy(r, w);
+      w += 1;
+      w = reduceTail(code, w);
+    }
+    code.truncate(w);
+    return w != size;
+  }
+
+  private int reduceTail(VMCode code, int w) {
+    // apply the window rules to the end of the already emitted output until none matches
+    while (w >= 2) {
+      int a = w - 2, b = w - 1;
+      OpcodeType opA = code.getOpcode(a), opB = code.getOpcode(b);
+      if ((opA == OpcodeType.GOTO || opA == OpcodeType.RETURN) && opB != OpcodeType.LABEL && opB != OpcodeType.FUNCTION) {
+        // unreachable
+        w -= 1;
+      } else if (opA == OpcodeType.PUSH && opB == OpcodeType.POP
+          && code.getSegment(a) == code.getSegment(b) && code.getOperand(a) == code.getOperand(b)) {
+        w -= 2;
+      } else if (opA == OpcodeType.NOT && opB == OpcodeType.NOT) {
+        w -= 2;
+      } else if (opA == OpcodeType.PUSH && code.getSegment(a) == SegmentType.CONST && opB == OpcodeType.IF_GOTO) {
+        if (code.getOperand(a) == 0) {
+          w -= 2;
+        } else {
+          code.set(a, OpcodeType.GOTO, code.getNameId(b), 0);
+          w -= 1;
+        }
+      } else if (w >= 3 && opA == OpcodeType.NOT && opB == OpcodeType.IF_GOTO
+          && code.is(w - 3, OpcodeType.PUSH) && code.getSegment(w - 3) == SegmentType.CONST) {
+        // ~k with a non-negative constant k is never 0
+        code.set(w - 3, OpcodeType.GOTO, code.getNameId(b), 0);
+        w -= 2;
+      } else if (opA == OpcodeType.GOTO && opB == OpcodeType.LABEL && code.getNameId(a) == code.getNameId(b)) {
+        code.copy(b, a);
+        w -= 1;
+      } else {
+        break;
+      }
+    }
+    return w;
+  }
+
+  private boolean dropUnusedLabels(VMCode code) {
+    BitSet used = new BitSet(code.getNameCount());
+    for (int i = 0; i < code.size(); i++) {
+      if (code.is(i, OpcodeType.GOTO) || code.is(i, OpcodeType.IF_GOTO)) {
+        used.set(code.getNameId(i));
+      }
+    }
+    int w = 0;
+    for (int r = 0; r < code.size(); r++) {
+      if (code.is(r, OpcodeType.LABEL) && !used.get(code.getNameId(r))) {
+        continue;
+      }
+      code.copy(r, w);
+      w += 1;
+    }
+    boolean changed = w != code.size();
+    code.truncate(w);
+    return changed;
+  }
+
+  private boolean dropArrayReadSpills(VMCode code) {
+    // An array read is emitted as
+    //   push pointer 1; pop temp 0; <index>; add; pop pointer 1; push that 0;
+    //   pop temp 1; push temp 0; pop pointer 1; push temp 1
+    // The spill only exists to give pointer 1 back to an enclosing let. When the restored value is dead,
+    // everything but "add; pop pointer 1; push that 0" can go.
+    int size = code.size();
+    int[] labelPos = labelPositions(code);
+    boolean[] drop = new boolean[size];
+    Deque<Integer> opens = new ArrayDeque<>();
+    boolean found = false;
+    for (int i = 0; i < size; i++) {
+      if (code.is(i, OpcodeType.FUNCTION)) {
+        opens.clear();
+      } else if (i + 1 < size && code.is(i, OpcodeType.PUSH, SegmentType.POINTER, 1) && code.is(i + 1, OpcodeType.POP, SegmentType.TEMP, 0)) {
+        opens.push(i);
+        i += 1;
+      } else if (isReadTail(code, i) && !opens.isEmpty()) {
+        int open = opens.pop();
+        if (!isThatLive(code, labelPos, i + 6)) {
+          drop[open] = drop[open + 1] = true;
+          drop[i + 2] = drop[i + 3] = drop[i + 4] = drop[i + 5] = true;
+          found = true;
+        }
+        i += 5;
+      }
+    }
+    if (!found) {
+      return false;
+    }
+    int w = 0;
+    for (int r = 0; r < size; r++) {
+      if (!drop[r]) {
+        code.copy(r, w);
+        w += 1;
+      }
+    }
+    code.truncate(w);
+    return true;
+  }
+
+  private boolean isReadTail(VMCode code, int i) {
+    return i + 5 < code.size()
+        && code.is(i, OpcodeType.POP, SegmentType.POINTER, 1)
+        && code.is(i + 1, OpcodeType.PUSH, SegmentType.THAT, 0)
+        && code.is(i + 2, OpcodeType.POP, SegmentType.TEMP, 1)
+        && code.is(i + 3, OpcodeType.PUSH, SegmentType.TEMP, 0)
+        && code.is(i + 4, OpcodeType.POP, SegmentType.POINTER, 1)
+        && code.is(i + 5, OpcodeType.PUSH, SegmentType.TEMP, 1);
+  }
+
+  private boolean isThatLive(VMCode code, int[] labelPos, int from) {
+    // Does any path starting at from read pointer 1 / that before pointer 1 is written again?
+    // Calls are transparent: the VM saves and restores THAT around them.
+    BitSet visited = new BitSet(code.size());
+    Deque<Integer> work = new ArrayDeque<>();
+    work.push(from);
+    int budget = LIVENESS_BUDGET;
+    while (!work.isEmpty()) {
+      int p = work.pop();
+      while (p < code.size() && !visited.get(p)) {
+        if (--budget < 0) {
+          return true;
+        }
+        visited.set(p);
+        OpcodeType op = code.getOpcode(p);
+        if ((op == OpcodeType.PUSH || op == OpcodeType.POP) && code.getSegment(p) == SegmentType.THAT) {
+          return true;
+        }
+        if (code.is(p, OpcodeType.PUSH, SegmentType.POINTER, 1)) {
+          return true;
+        }
+        if (code.is(p, OpcodeType.POP, SegmentType.POINTER, 1) || op == OpcodeType.RETURN || op == OpcodeType.FUNCTION) {
+          break;
+        }
+        if (op == OpcodeType.GOTO || op == OpcodeType.IF_GOTO) {
+          int target = labelPos[code.getNameId(p)];
+          if (target < 0) {
+            return true;
+          }
+          if (op == OpcodeType.GOTO) {
+            p = target;
+            continue;
+          }
+          work.push(target);
+        }
+        p += 1;
+      }
+    }
+    return false;
+  }
+
+  private int[] labelPositions(VMCode code) {
+    int[] pos = new int[code.getNameCount()];
+    Arrays.fill(pos, -1);
+    for (int i = 0; i < code.size(); i++) {
+      if (code.is(i, OpcodeType.LABEL)) {
+        pos[code.getNameId(i)] = i;
+      }
+    }
+    return pos;
+  }
+
+}
@@ -0,0 +1,122 @@
+package nand2tetris;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches a source directory and recompiles the .jack files that change, keeping the compiler warm in between.
+ * Events are collected until the directory has been quiet for DEBOUNCE_MILLIS, so the several events of one save
+ * trigger a single recompile. In whole-program mode every change rebuilds the whole program.
+ */
+public class SourceWatcher {
+
+  static final long DEBOUNCE_MILLIS = 10;
+
+  private final CompilerOptions options;
+  private final Path workingDir;
+  private final Path dir;
+  // class name of the single watched file, or null to watch every .jack file in dir
+  private final String onlyClass;
+  private final PrintStream out;
+  private final BuildCache cache;
+
+  SourceWatcher(CompilerOptions options, Path workingDir, PrintStream out) throws Exception {
+    this.options = options;
+    this.workingDir = workingDir;
+    this.out = out;
+    if (options.getInputs().size() == 1 && !Files.isDirectory(workingDir.resolve(options.getInputs().get(0)))) {
+      Path input = workingDir.toAbsolutePath().resolve(options.getInputs().get(0));
+      String name = input.getFileName().toString();
+      this.dir = input.getParent();
+      this.onlyClass = name.endsWith(".jack") ? name.substring(0, name.length() - ".jack".length()) : name;
+    } else {
+      // a single root directory is watched at its top level; with no or several inputs, the working directory
+      this.dir = options.getInputs().size() == 1
+          ? workingDir.toAbsolutePath().resolve(options.getInputs().get(0)).normalize() : workingDir.toAbsolutePath();
+      this.onlyClass = null;
+    }
+    this.cache = options.isIncremental() && !options.isWholeProgram()
+        ? new BuildCache(this.dir, JackCompiler.VERSION + "/" + options.getCodegenKey()) : null;
+  }
+
+  public void watch() throws Exception {
+    try (WatchService service = this.dir.getFileSystem().newWatchService()) {
+      this.dir.register(service, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+      this.out.printf("Watching %s for changes%n", this.dir);
+      while (true) {
+        WatchKey key = service.take();
+        long firstEvent = System.nanoTime();
+        Set<String> changed = new TreeSet<>();
+        while (key != null) {
+          collect(key, changed);
+          if (!key.reset()) {
+            this.out.printf("Stopped watching %s, it is no longer accessible%n", this.dir);
+            return;
+          }
+          key = service.poll(DEBOUNCE_MILLIS, TimeUnit.MILLISECONDS);
+        }
+        if (!changed.isEmpty()) {
+          recompile(changed, firstEvent);
+        }
+      }
+    }
+  }
+
+  // Private method
+
+  private void collect(WatchKey key, Set<String> changed) {
+    for (WatchEvent<?> event : key.pollEvents()) {
+      if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+        continue;
+      }
+      String name = event.context().toString();
+      if (!name.endsWith(".jack")) {
+        continue;
+      }
+      String className = name.substring(0, name.length() - ".jack".length());
+      if (this.onlyClass == null || this.onlyClass.equals(className)) {
+        changed.add(className);
+      }
+    }
+  }
+
+  private void recompile(Set<String> changed, long firstEvent) {
+    long start = System.nanoTime();
+    String names = String.join(".jack, ", changed) + ".jack";
+    try {
+      if (this.options.isWholeProgram()) {
+        JackCompiler.compile(this.options, this.workingDir, this.out);
+      } else {
+        List<File> targetFiles = new ArrayList<>();
+        for (String className : changed) {
+          targetFiles.add(this.dir.resolve(className).toFile());
+        }
+        JackCompiler.forEachFile(targetFiles, this.options, (engine, targetFile) -> {
+          JackCompiler.compileFile(engine, targetFile, this.options, this.cache, null);
+          return null;
+        });
+        if (this.cache != null) {
+          this.cache.save();
+        }
+      }
+    } catch (Exception e) {
+      this.out.printf("Error compiling %s: %s%n", names, e.getMessage());
+      return;
+    }
+    long end = System.nanoTime();
+    this.out.printf("Recompiled %s in %.1f ms (%.1f ms after the first change)%n", names, (end - start) / 1e6,
+        (end - firstEvent) / 1e6);
+  }
+
+}
@@ -3,29 +3,44 @@ package nand2tetris;
 import nand2tetris.utils.SymbolValueBean;
 import nand2tetris.utils.VarAttributionType;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 public class SymbolTable {
 
-  private final Map<String, SymbolValueBean> globalTable;
-  private Map<String, SymbolValueBean> localTable;
+  // Class and subroutine scopes share one map; localNames remembers what startSubroutine has to take out again.
+  private final Map<String, SymbolValueBean> table;
+  private final List<String> localNames;
   private int g_staticIndex;
   private int g_fieldIndex;
   private int l_argIndex;
   private int l_varIndex;
 
   SymbolTable() {
-    this.globalTable = new HashMap<>();
-    this.localTable = new HashMap<>();
+    this.table = new HashMap<>();
+    this.localNames = new ArrayList<>();
     this.g_staticIndex = 0;
     this.g_fieldIndex = 0;
     this.l_argIndex = 0;
     this.l_varIndex = 0;
   }
 
+  public SymbolTable copy() {
+    // class scope only: meant to be taken between subroutines, when no local names are defined
+    SymbolTable copy = new SymbolTable();
+    copy.table.putAll(this.table);
+    copy.g_staticIndex = this.g_staticIndex;
+    copy.g_fieldIndex = this.g_fieldIndex;
+    return copy;
+  }
+
   public void startSubroutine() {
-    this.localTable = new HashMap<>();
+    for (String name : this.localNames) {
+      this.table.remove(name);
+    }
+    this.localNames.clear();
     this.l_argIndex = 0;
     this.l_varIndex = 0;
   }
@@ -33,19 +48,19 @@ public class SymbolTable {
   public void define(String name, String type, VarAttributionType kind) throws Exception {
     switch (kind) {
       case STATIC:
-        this.globalTable.put(name, new SymbolValueBean(name, type, kind, this.g_staticIndex));
+        this.table.put(name, new SymbolValueBean(name, type, kind, this.g_staticIndex));
         this.g_staticIndex += 1;
         break;
       case FIELD:
-        this.globalTable.put(name, new SymbolValueBean(name, type, kind, this.g_fieldIndex));
+        this.table.put(name, new SymbolValueBean(name, type, kind, this.g_fieldIndex));
         this.g_fieldIndex += 1;
         break;
       case ARG:
-        this.localTable.put(name, new SymbolValueBean(name, type, kind, this.l_argIndex));
+        defineLocal(new SymbolValueBean(name, type, kind, this.l_argIndex));
         this.l_argIndex += 1;
         break;
       case LOCAL:
-        this.localTable.put(name, new SymbolValueBean(name, type, kind, this.l_varIndex));
+        defineLocal(new SymbolValueBean(name, type, kind, this.l_varIndex));
         this.l_varIndex += 1;
         break;
       case NONE:
@@ -55,50 +70,57 @@ public class SymbolTable {
   }
 
   public int varCount(VarAttributionType kind) throws Exception {
-    int ret = 0;
-
-    for (SymbolValueBean bean : this.globalTable.values()) {
-      if (kind == bean.getKind()) {
-        ret += 1;
-      }
-    }
-    for (SymbolValueBean bean : this.localTable.values()) {
-      if (kind == bean.getKind()) {
-        ret += 1;
-      }
+    switch (kind) {
+      case STATIC:
+        return this.g_staticIndex;
+      case FIELD:
+        return this.g_fieldIndex;
+      case ARG:
+        return this.l_argIndex;
+      case LOCAL:
+        return this.l_varIndex;
+      default:
+        return 0;
     }
-    return ret;
+  }
 
+  public SymbolValueBean resolve(String name) {
+    // kind, type and index in one lookup; null when the name is not a variable
+    return this.table.get(name);
   }
 
   public VarAttributionType kindOf(String name) throws Exception {
-    if (this.globalTable.containsKey(name)) {
-      return this.globalTable.get(name).getKind();
-    }
-    if (this.localTable.containsKey(name)) {
-      return this.localTable.get(name).getKind();
-    }
-    return VarAttributionType.NONE;
+    SymbolValueBean bean = resolve(name);
+    return bean == null ? VarAttributionType.NONE : bean.getKind();
   }
 
   public String typeOf(String name) throws Exception {
-    if (this.globalTable.containsKey(name)) {
-      return this.globalTable.get(name).getType();
+    SymbolValueBean bean = resolve(name);
+    if (bean == null) {
+      throw new Exception();
     }
-    if (this.localTable.containsKey(name)) {
-      return this.localTable.get(name).getType();
-    }
-    throw new Exception();
+    return bean.getType();
   }
 
   public int indexOf(String name) throws Exception {
-    if (this.globalTable.containsKey(name)) {
-      return this.globalTable.get(name).getIndex();
+    SymbolValueBean bean = resolve(name);
+    if (bean == null) {
+      throw new Exception();
     }
-    if (localTable.containsKey(name)) {
-      return this.localTable.get(name).getIndex();
+    return bean.getIndex();
+  }
+
+  // Private method
+
+  private void defineLocal(SymbolValueBean bean) {
+    // a class-level name keeps precedence over a subroutine-level one
+    SymbolValueBean prev = this.table.get(bean.getName());
+    if (prev == null) {
+      this.table.put(bean.getName(), bean);
+      this.localNames.add(bean.getName());
+    } else if (prev.getKind() == VarAttributionType.ARG || prev.getKind() == VarAttributionType.LOCAL) {
+      this.table.put(bean.getName(), bean);
     }
-    throw new Exception();
   }
 
 }
@@ -0,0 +1,96 @@
+package nand2tetris;
+
+import nand2tetris.utils.NodeType;
+
+import java.util.Arrays;
+
+/**
+ * Syntax tree of one class, held in flat arrays instead of one object per node.
+ * A node is an index: kinds holds its NodeType ordinal, tokens the tokenizer position of its first token, and
+ * firstChild/nextSibling link it into the tree (NONE where there is none). Every token of the class is a TOKEN
+ * leaf, so a node covers the tokens from its own up to its next sibling's. The arrays are kept by clear(), so
+ * one tree is an arena that is reused from class to class.
+ */
+public class SyntaxTree {
+
+  public static final int NONE = -1;
+  private static final NodeType[] nodeTypes = NodeType.values();
+
+  private byte[] kinds;
+  private int[] tokens;
+  private int[] firstChild;
+  private int[] nextSibling;
+  // only needed while building, to append children in order
+  private int[] lastChild;
+  private int size;
+
+  SyntaxTree() {
+    this.kinds = new byte[256];
+    this.tokens = new int[256];
+    this.firstChild = new int[256];
+    this.nextSibling = new int[256];
+    this.lastChild = new int[256];
+    this.size = 0;
+  }
+
+  public void clear() {
+    this.size = 0;
+  }
+
+  public int add(int parent, NodeType kind, int token) {
+    int node = this.size;
+    if (node == this.kinds.length) {
+      int capacity = node * 2;
+      this.kinds = Arrays.copyOf(this.kinds, capacity);
+      this.tokens = Arrays.copyOf(this.tokens, capacity);
+      this.firstChild = Arrays.copyOf(this.firstChild, capacity);
+      this.nextSibling = Arrays.copyOf(this.nextSibling, capacity);
+      this.lastChild = Arrays.copyOf(this.lastChild, capacity);
+    }
+    this.kinds[node] = (byte) kind.ordinal();
+    this.tokens[node] = token;
+    this.firstChild[node] = NONE;
+    this.nextSibling[node] = NONE;
+    this.lastChild[node] = NONE;
+    if (parent != NONE) {
+      if (this.lastChild[parent] == NONE) {
+        this.firstChild[parent] = node;
+      } else {
+        this.nextSibling[this.lastChild[parent]] = node;
+      }
+      this.lastChild[parent] = node;
+    }
+    this.size += 1;
+    return node;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public int getRoot() {
+    return this.size == 0 ? NONE : 0;
+  }
+
+  public NodeType getKind(int node) {
+    return nodeTypes[this.kinds[node]];
+  }
+
+  public int getToken(int node) {
+    return this.tokens[node];
+  }
+
+  public int getFirstChild(int node) {
+    return this.firstChild[node];
+  }
+
+  public int getNextSibling(int node) {
+    return this.nextSibling[node];
+  }
+
+  public long getArenaBytes() {
+    // 1 byte of kind and 4 ints per allocated node
+    return (long) this.kinds.length * (1 + 4 * Integer.BYTES);
+  }
+
+}
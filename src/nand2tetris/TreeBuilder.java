@@ -0,0 +1,281 @@
+package nand2tetris;
+
+import nand2tetris.utils.KeywordType;
+import nand2tetris.utils.NodeType;
+import nand2tetris.utils.SymbolType;
+import nand2tetris.utils.TokenType;
+
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * Parses the tokens of one class into a SyntaxTree, following the Jack grammar.
+ * It only builds the tree; code is generated from it by CompilationEngine.compileClass(SyntaxTree).
+ */
+public class TreeBuilder {
+
+  private static final Set<SymbolType> opSet = EnumSet.of(SymbolType.PLUS, SymbolType.MINUS, SymbolType.ASTERISK, SymbolType.SLASH, SymbolType.AND, SymbolType.OR, SymbolType.LT, SymbolType.GT, SymbolType.EQ);
+
+  private final SyntaxTree tree;
+  private JackTokenizer jt;
+
+  TreeBuilder(SyntaxTree tree) {
+    this.tree = tree;
+  }
+
+  public SyntaxTree build(JackTokenizer jt) throws Exception {
+    this.jt = jt;
+    this.tree.clear();
+    this.jt.advance();
+
+    int root = this.tree.add(SyntaxTree.NONE, NodeType.CLASS, this.jt.getPosition());
+    keyword(root, KeywordType.CLASS);
+    identifier(root);
+    symbol(root, SymbolType.L_BRACE);
+    while (this.jt.isKeyword(KeywordType.STATIC) || this.jt.isKeyword(KeywordType.FIELD)) {
+      classVarDec(root);
+    }
+    while (this.jt.isKeyword(KeywordType.CONSTRUCTOR) || this.jt.isKeyword(KeywordType.FUNCTION)
+        || this.jt.isKeyword(KeywordType.METHOD)) {
+      subroutineDec(root);
+    }
+    symbol(root, SymbolType.R_BRACE);
+    return this.tree;
+  }
+
+  // Private method
+
+  private void classVarDec(int parent) throws Exception {
+    // ('static' | 'field') type varName (',' varName)* ';'
+    int node = open(parent, NodeType.CLASS_VAR_DEC);
+    token(node); // static or field
+    type(node);
+    identifier(node);
+    while (this.jt.isSymbol(SymbolType.COMMA)) {
+      symbol(node, SymbolType.COMMA);
+      identifier(node);
+    }
+    symbol(node, SymbolType.SEMICOLON);
+  }
+
+  private void subroutineDec(int parent) throws Exception {
+    // ('constructor' | 'function' | 'method') ('void' | type) subroutineName '(' parameterList ')' subroutineBody
+    int node = open(parent, NodeType.SUBROUTINE_DEC);
+    token(node);
+    type(node);
+    identifier(node);
+    symbol(node, SymbolType.L_PAREN);
+    int params = open(node, NodeType.PARAMETER_LIST);
+    while (!this.jt.isSymbol(SymbolType.R_PAREN)) {
+      type(params);
+      identifier(params);
+      if (this.jt.isSymbol(SymbolType.COMMA)) {
+        symbol(params, SymbolType.COMMA);
+      }
+    }
+    symbol(node, SymbolType.R_PAREN);
+
+    int body = open(node, NodeType.SUBROUTINE_BODY);
+    symbol(body, SymbolType.L_BRACE);
+    while (this.jt.isKeyword(KeywordType.VAR)) {
+      int varDec = open(body, NodeType.VAR_DEC);
+      keyword(varDec, KeywordType.VAR);
+      type(varDec);
+      identifier(varDec);
+      while (this.jt.isSymbol(SymbolType.COMMA)) {
+        symbol(varDec, SymbolType.COMMA);
+        identifier(varDec);
+      }
+      symbol(varDec, SymbolType.SEMICOLON);
+    }
+    statements(body);
+    symbol(body, SymbolType.R_BRACE);
+  }
+
+  private void statements(int parent) throws Exception {
+    int node = open(parent, NodeType.STATEMENTS);
+    while (!this.jt.isSymbol(SymbolType.R_BRACE)) {
+      switch (this.jt.getKeyword()) {
+        case LET:
+          letStatement(node);
+          break;
+        case IF:
+          ifStatement(node);
+          break;
+        case WHILE:
+          whileStatement(node);
+          break;
+        case DO:
+          doStatement(node);
+          break;
+        case RETURN:
+          returnStatement(node);
+          break;
+        default:
+          throw new Exception(String.format("This keyword [%s] does not start a statement !!", this.jt.getKeyword().getKeyword()));
+      }
+    }
+  }
+
+  private void letStatement(int parent) throws Exception {
+    // 'let' varName ('[' expression ']')? '=' expression ';'
+    int node = open(parent, NodeType.LET_STATEMENT);
+    keyword(node, KeywordType.LET);
+    identifier(node);
+    if (this.jt.isSymbol(SymbolType.L_BRACKET)) {
+      symbol(node, SymbolType.L_BRACKET);
+      expression(node);
+      symbol(node, SymbolType.R_BRACKET);
+    }
+    symbol(node, SymbolType.EQ);
+    expression(node);
+    symbol(node, SymbolType.SEMICOLON);
+  }
+
+  private void ifStatement(int parent) throws Exception {
+    // 'if' '(' expression ')' '{' statements '}' ('else' '{' statements '}')?
+    int node = open(parent, NodeType.IF_STATEMENT);
+    keyword(node, KeywordType.IF);
+    symbol(node, SymbolType.L_PAREN);
+    expression(node);
+    symbol(node, SymbolType.R_PAREN);
+    symbol(node, SymbolType.L_BRACE);
+    statements(node);
+    symbol(node, SymbolType.R_BRACE);
+    if (this.jt.isKeyword(KeywordType.ELSE)) {
+      keyword(node, KeywordType.ELSE);
+      symbol(node, SymbolType.L_BRACE);
+      statements(node);
+      symbol(node, SymbolType.R_BRACE);
+    }
+  }
+
+  private void whileStatement(int parent) throws Exception {
+    // 'while' '(' expression ')' '{' statements '}'
+    int node = open(parent, NodeType.WHILE_STATEMENT);
+    keyword(node, KeywordType.WHILE);
+    symbol(node, SymbolType.L_PAREN);
+    expression(node);
+    symbol(node, SymbolType.R_PAREN);
+    symbol(node, SymbolType.L_BRACE);
+    statements(node);
+    symbol(node, SymbolType.R_BRACE);
+  }
+
+  private void doStatement(int parent) throws Exception {
+    // 'do' subroutineCall ';'
+    int node = open(parent, NodeType.DO_STATEMENT);
+    keyword(node, KeywordType.DO);
+    subroutineCall(node);
+    symbol(node, SymbolType.SEMICOLON);
+  }
+
+  private void returnStatement(int parent) throws Exception {
+    // 'return' expression? ';'
+    int node = open(parent, NodeType.RETURN_STATEMENT);
+    keyword(node, KeywordType.RETURN);
+    if (!this.jt.isSymbol(SymbolType.SEMICOLON)) {
+      expression(node);
+    }
+    symbol(node, SymbolType.SEMICOLON);
+  }
+
+  private void expression(int parent) throws Exception {
+    // term (op term)*
+    int node = open(parent, NodeType.EXPRESSION);
+    term(node);
+    while (this.jt.getTokenType() == TokenType.SYMBOL && opSet.contains(this.jt.getSymbol())) {
+      token(node);
+      term(node);
+    }
+  }
+
+  private void term(int parent) throws Exception {
+    int node = open(parent, NodeType.TERM);
+    TokenType tt = this.jt.getTokenType();
+    if (tt == TokenType.INT_CONST || tt == TokenType.STRING_CONST || tt == TokenType.KEY_WORD) {
+      token(node);
+    } else if (tt == TokenType.IDENTIFIER) {
+      // varName | varName '[' expression ']' | subroutineCall
+      int name = this.jt.getPosition();
+      this.jt.advance();
+      boolean call = this.jt.isSymbol(SymbolType.L_PAREN) || this.jt.isSymbol(SymbolType.DOT);
+      this.jt.seek(name);
+      if (call) {
+        subroutineCall(node);
+      } else {
+        identifier(node);
+        if (this.jt.isSymbol(SymbolType.L_BRACKET)) {
+          symbol(node, SymbolType.L_BRACKET);
+          expression(node);
+          symbol(node, SymbolType.R_BRACKET);
+        }
+      }
+    } else if (this.jt.isSymbol(SymbolType.L_PAREN)) {
+      symbol(node, SymbolType.L_PAREN);
+      expression(node);
+      symbol(node, SymbolType.R_PAREN);
+    } else if (this.jt.isSymbol(SymbolType.MINUS) || this.jt.isSymbol(SymbolType.TILDE)) {
+      token(node);
+      term(node);
+    } else {
+      throw new Exception(String.format("This token [%s] does not start a term !!", this.jt.getTagType()));
+    }
+  }
+
+  private void subroutineCall(int parent) throws Exception {
+    // subroutineName '(' expressionList ')' | (className | varName) '.' subroutineName '(' expressionList ')'
+    identifier(parent);
+    if (this.jt.isSymbol(SymbolType.DOT)) {
+      symbol(parent, SymbolType.DOT);
+      identifier(parent);
+    }
+    symbol(parent, SymbolType.L_PAREN);
+    int list = open(parent, NodeType.EXPRESSION_LIST);
+    while (!this.jt.isSymbol(SymbolType.R_PAREN)) {
+      expression(list);
+      if (this.jt.isSymbol(SymbolType.COMMA)) {
+        symbol(list, SymbolType.COMMA);
+      }
+    }
+    symbol(parent, SymbolType.R_PAREN);
+  }
+
+  private void type(int parent) throws Exception {
+    // int, char, boolean, void or a class name
+    if (this.jt.getTokenType() == TokenType.KEY_WORD) {
+      token(parent);
+    } else {
+      identifier(parent);
+    }
+  }
+
+  private int open(int parent, NodeType kind) {
+    return this.tree.add(parent, kind, this.jt.getPosition());
+  }
+
+  private void token(int parent) throws Exception {
+    this.tree.add(parent, NodeType.TOKEN, this.jt.getPosition());
+    this.jt.advance();
+  }
+
+  private void keyword(int parent, KeywordType kt) throws Exception {
+    if (!this.jt.isKeyword(kt)) {
+      throw new Exception(String.format("Expected keyword [%s] !!", kt.getKeyword()));
+    }
+    token(parent);
+  }
+
+  private void symbol(int parent, SymbolType st) throws Exception {
+    if (!this.jt.isSymbol(st)) {
+      throw new Exception(String.format("Expected symbol [%c] !!", st.getSymbol()));
+    }
+    token(parent);
+  }
+
+  private void identifier(int parent) throws Exception {
+    this.jt.getIdentifier(); // throws when the token is not an identifier
+    token(parent);
+  }
+
+}
@@ -0,0 +1,211 @@
+package nand2tetris;
+
+import nand2tetris.utils.OpcodeType;
+import nand2tetris.utils.SegmentType;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Generated VM code of one class, kept as parallel int arrays instead of text.
+ * For push/pop, segments holds the SegmentType ordinal and operands the index. For label, goto, if-goto, call and
+ * function, segments holds an interned name ID and operands the argument or local count (0 for labels).
+ */
+public class VMCode {
+
+  private static final OpcodeType[] opcodeTypes = OpcodeType.values();
+  private static final SegmentType[] segmentTypes = SegmentType.values();
+
+  private int[] opcodes;
+  private int[] segments;
+  private int[] operands;
+  private int size;
+  private String[] names;
+  private int nameCount;
+  private final Map<String, Integer> nameIds;
+
+  VMCode() {
+    this.opcodes = new int[256];
+    this.segments = new int[256];
+    this.operands = new int[256];
+    this.size = 0;
+    this.names = new String[64];
+    this.nameCount = 0;
+    this.nameIds = new HashMap<>();
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public OpcodeType getOpcode(int idx) {
+    return opcodeTypes[this.opcodes[idx]];
+  }
+
+  public SegmentType getSegment(int idx) {
+    return segmentTypes[this.segments[idx]];
+  }
+
+  public int getOperand(int idx) {
+    return this.operands[idx];
+  }
+
+  public int getNameId(int idx) {
+    return this.segments[idx];
+  }
+
+  public String getName(int idx) {
+    return this.names[this.segments[idx]];
+  }
+
+  public int getNameCount() {
+    return nameCount;
+  }
+
+  public String nameOf(int nameId) {
+    return this.names[nameId];
+  }
+
+  public int intern(String name) {
+    Integer id = this.nameIds.get(name);
+    if (id == null) {
+      id = this.nameCount;
+      if (id == this.names.length) {
+        this.names = Arrays.copyOf(this.names, id * 2);
+      }
+      this.names[id] = name;
+      this.nameIds.put(name, id);
+      this.nameCount += 1;
+    }
+    return id;
+  }
+
+  public void add(OpcodeType op, int segment, int operand) {
+    if (this.size == this.opcodes.length) {
+      this.opcodes = Arrays.copyOf(this.opcodes, this.size * 2);
+      this.segments = Arrays.copyOf(this.segments, this.size * 2);
+      this.operands = Arrays.copyOf(this.operands, this.size * 2);
+    }
+    this.opcodes[this.size] = op.ordinal();
+    this.segments[this.size] = segment;
+    this.operands[this.size] = operand;
+    this.size += 1;
+  }
+
+  public void append(VMCode from, int idx) {
+    // copies one instruction of another buffer, re-interning its name here
+    OpcodeType op = from.getOpcode(idx);
+    this.add(op, op.isNamed() ? this.intern(from.getName(idx)) : from.segments[idx], from.operands[idx]);
+  }
+
+  public void set(int idx, OpcodeType op, int segment, int operand) {
+    this.opcodes[idx] = op.ordinal();
+    this.segments[idx] = segment;
+    this.operands[idx] = operand;
+  }
+
+  public void copy(int from, int to) {
+    this.opcodes[to] = this.opcodes[from];
+    this.segments[to] = this.segments[from];
+    this.operands[to] = this.operands[from];
+  }
+
+  public void delete(int from, int to) {
+    int n = this.size - to;
+    System.arraycopy(this.opcodes, to, this.opcodes, from, n);
+    System.arraycopy(this.segments, to, this.segments, from, n);
+    System.arraycopy(this.operands, to, this.operands, from, n);
+    this.size -= to - from;
+  }
+
+  public void rotate(int from, int mid) {
+    // [from, mid) [mid, size)  ->  [mid, size) [from, mid)
+    int n = this.size - from;
+    int head = mid - from;
+    this.opcodes = rotated(this.opcodes, from, head, n);
+    this.segments = rotated(this.segments, from, head, n);
+    this.operands = rotated(this.operands, from, head, n);
+  }
+
+  public void truncate(int newSize) {
+    this.size = newSize;
+  }
+
+  public boolean is(int idx, OpcodeType op) {
+    return this.opcodes[idx] == op.ordinal();
+  }
+
+  public boolean is(int idx, OpcodeType op, SegmentType seg, int operand) {
+    return this.opcodes[idx] == op.ordinal() && this.segments[idx] == seg.ordinal() && this.operands[idx] == operand;
+  }
+
+  public int stackEffect(int idx) {
+    // net change of the working stack; a call pops its arguments and pushes the return value
+    switch (opcodeTypes[this.opcodes[idx]]) {
+      case PUSH:
+        return 1;
+      case POP:
+      case ADD:
+      case SUB:
+      case EQ:
+      case GT:
+      case LT:
+      case AND:
+      case OR:
+      case IF_GOTO:
+      case RETURN:
+        return -1;
+      case CALL:
+        return 1 - this.operands[idx];
+      default:
+        return 0;
+    }
+  }
+
+  public int maxStackDepth(int from, int to) {
+    // deepest the working stack gets while [from, to) runs, counted from its depth at from
+    int depth = 0;
+    int max = 0;
+    for (int i = from; i < to; i++) {
+      depth += stackEffect(i);
+      max = Math.max(max, depth);
+    }
+    return max;
+  }
+
+  public Map<String, Integer> maxStackDepths() {
+    // Deepest working stack of every function, in code order. A straight scan is enough for the engine's code:
+    // statements leave the stack as they found it, so every label is reached at the same depth on all paths.
+    Map<String, Integer> depths = new LinkedHashMap<>();
+    int start = -1;
+    for (int i = 0; i <= this.size; i++) {
+      if (i == this.size || this.opcodes[i] == OpcodeType.FUNCTION.ordinal()) {
+        if (start >= 0) {
+          depths.put(getName(start), maxStackDepth(start + 1, i));
+        }
+        start = i;
+      }
+    }
+    return depths;
+  }
+
+  public void clear() {
+    // keeps the arrays, so one instance can be reused for the next class
+    this.size = 0;
+    Arrays.fill(this.names, 0, this.nameCount, null);
+    this.nameCount = 0;
+    this.nameIds.clear();
+  }
+
+  // Private method
+
+  private static int[] rotated(int[] arr, int from, int head, int n) {
+    int[] moved = Arrays.copyOfRange(arr, from, from + head);
+    System.arraycopy(arr, from + head, arr, from, n - head);
+    System.arraycopy(moved, 0, arr, from + n - head, head);
+    return arr;
+  }
+
+}
@@ -0,0 +1,144 @@
+package nand2tetris;
+
+import nand2tetris.utils.OpcodeType;
+import nand2tetris.utils.SegmentType;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes a VMCode buffer out as .vm text.
+ */
+public class VMTextSerializer {
+
+  private static final int BUFFER_SIZE = 1 << 15;
+
+  // Instruction text is encoded once; emitting a line only copies these bytes and formats integers in place.
+  private static final byte[][] PUSH = new byte[SegmentType.values().length][];
+  private static final byte[][] POP = new byte[SegmentType.values().length][];
+  private static final byte[][] OPCODE = new byte[OpcodeType.values().length][];
+  private static final byte[] SPACE = ascii(" ");
+
+  static {
+    for (SegmentType seg : SegmentType.values()) {
+      PUSH[seg.ordinal()] = ascii("push " + seg.getSeg() + " ");
+      POP[seg.ordinal()] = ascii("pop " + seg.getSeg() + " ");
+    }
+    for (OpcodeType op : OpcodeType.values()) {
+      OPCODE[op.ordinal()] = ascii(op.isArithmetic() || op == OpcodeType.RETURN ? op.getOp() + "\n" : op.getOp() + " ");
+    }
+  }
+
+  private final WritableByteChannel channel;
+  private final byte[] buf;
+  private final ByteBuffer out;
+  private int pos;
+
+  VMTextSerializer(WritableByteChannel channel) {
+    this.channel = channel;
+    this.buf = new byte[BUFFER_SIZE];
+    this.out = ByteBuffer.wrap(this.buf);
+    this.pos = 0;
+  }
+
+  public void write(VMCode code) throws IOException {
+    byte[][] nameBytes = new byte[code.getNameCount()][];
+    for (int id = 0; id < nameBytes.length; id++) {
+      nameBytes[id] = ascii(code.nameOf(id));
+    }
+
+    for (int i = 0; i < code.size(); i++) {
+      OpcodeType op = code.getOpcode(i);
+      switch (op) {
+        case PUSH:
+          put(PUSH[code.getSegment(i).ordinal()]);
+          putInt(code.getOperand(i));
+          putNewline();
+          break;
+        case POP:
+          put(POP[code.getSegment(i).ordinal()]);
+          putInt(code.getOperand(i));
+          putNewline();
+          break;
+        case LABEL:
+        case GOTO:
+        case IF_GOTO:
+          put(OPCODE[op.ordinal()]);
+          put(nameBytes[code.getNameId(i)]);
+          putNewline();
+          break;
+        case CALL:
+        case FUNCTION:
+          put(OPCODE[op.ordinal()]);
+          put(nameBytes[code.getNameId(i)]);
+          put(SPACE);
+          putInt(code.getOperand(i));
+          putNewline();
+          break;
+        default:
+          put(OPCODE[op.ordinal()]);
+          break;
+      }
+    }
+    flush();
+  }
+
+  // Private method
+
+  private void flush() throws IOException {
+    this.out.limit(this.pos).position(0);
+    while (this.out.hasRemaining()) {
+      this.channel.write(this.out);
+    }
+    this.out.clear();
+    this.pos = 0;
+  }
+
+  private void put(byte[] bytes) throws IOException {
+    if (this.pos + bytes.length > this.buf.length) {
+      flush();
+      if (bytes.length > this.buf.length) {
+        ByteBuffer large = ByteBuffer.wrap(bytes);
+        while (large.hasRemaining()) {
+          this.channel.write(large);
+        }
+        return;
+      }
+    }
+    System.arraycopy(bytes, 0, this.buf, this.pos, bytes.length);
+    this.pos += bytes.length;
+  }
+
+  private void putInt(int value) throws IOException {
+    if (this.pos + 11 > this.buf.length) {
+      flush();
+    }
+    if (value < 0) {
+      this.buf[this.pos++] = '-';
+      value = -value;
+    }
+    int digits = 1;
+    for (int v = value / 10; v != 0; v /= 10) {
+      digits += 1;
+    }
+    for (int i = this.pos + digits - 1; i >= this.pos; i--) {
+      this.buf[i] = (byte) ('0' + value % 10);
+      value /= 10;
+    }
+    this.pos += digits;
+  }
+
+  private void putNewline() throws IOException {
+    if (this.pos == this.buf.length) {
+      flush();
+    }
+    this.buf[this.pos++] = '\n';
+  }
+
+  private static byte[] ascii(String text) {
+    return text.getBytes(StandardCharsets.US_ASCII);
+  }
+
+}
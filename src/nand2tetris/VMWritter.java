@@ -1,67 +1,157 @@
 package nand2tetris;
 
 import nand2tetris.utils.CommandType;
+import nand2tetris.utils.OpcodeType;
 import nand2tetris.utils.SegmentType;
 
-import java.io.BufferedWriter;
-import java.io.IOException;
-
 public class VMWritter {
 
-  BufferedWriter writer;
+  private final VMCode code;
+  private final int multiplyId;
+  private final int divideId;
+  private final int allocId;
+  private final int stringNewId;
+  private final int appendCharId;
+
+  VMWritter(VMCode code) {
+    this.code = code;
+    this.multiplyId = code.intern("Math.multiply");
+    this.divideId = code.intern("Math.divide");
+    this.allocId = code.intern("Memory.alloc");
+    this.stringNewId = code.intern("String.new");
+    this.appendCharId = code.intern("String.appendChar");
+  }
+
+  public VMCode getCode() {
+    return code;
+  }
+
+  public int mark() {
+    return this.code.size();
+  }
+
+  public void rewind(int mark) {
+    // drops everything written since mark
+    this.code.truncate(mark);
+  }
+
+  public void delete(int from, int to) {
+    // drops [from, to) and moves what was written after it up
+    this.code.delete(from, to);
+  }
+
+  public void moveTail(int tailMark, int to) {
+    // moves everything written since tailMark in front of position to
+    this.code.rotate(to, tailMark);
+  }
+
+  public boolean hasCall(int mark) {
+    for (int i = mark; i < this.code.size(); i++) {
+      if (this.code.is(i, OpcodeType.CALL)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  public boolean isPush(int idx) {
+    return this.code.is(idx, OpcodeType.PUSH);
+  }
 
-  VMWritter(BufferedWriter writer) {
-    this.writer = writer;
+  public boolean isNot(int idx) {
+    return this.code.is(idx, OpcodeType.NOT);
   }
 
-  public void writePush(SegmentType seg, int idx) throws IOException {
-    this.writer.write("push " + seg.getSeg() + " " + idx + "\n");
+  public SegmentType pushSegmentAt(int idx) {
+    return this.code.getSegment(idx);
   }
 
-  public void writePop(SegmentType seg, int idx) throws IOException {
-    this.writer.write("pop " + seg.getSeg() + " " + idx + "\n");
+  public int pushIndexAt(int idx) {
+    return this.code.getOperand(idx);
   }
 
-  public void writeArithmetic(CommandType cmd) throws IOException {
-    this.writer.write(cmd.getCmd() + "\n");
+  public void writePush(SegmentType seg, int idx) {
+    this.code.add(OpcodeType.PUSH, seg.ordinal(), idx);
+  }
+
+  public void writePop(SegmentType seg, int idx) {
+    this.code.add(OpcodeType.POP, seg.ordinal(), idx);
+  }
+
+  public void writeArithmetic(CommandType cmd) {
+    switch (cmd) {
+      case ADD:
+        this.code.add(OpcodeType.ADD, 0, 0);
+        break;
+      case SUB:
+        this.code.add(OpcodeType.SUB, 0, 0);
+        break;
+      case MUT:
+        this.code.add(OpcodeType.CALL, this.multiplyId, 2);
+        break;
+      case DIV:
+        this.code.add(OpcodeType.CALL, this.divideId, 2);
+        break;
+      case NEQ:
+        this.code.add(OpcodeType.NEG, 0, 0);
+        break;
+      case EQ:
+        this.code.add(OpcodeType.EQ, 0, 0);
+        break;
+      case GT:
+        this.code.add(OpcodeType.GT, 0, 0);
+        break;
+      case LT:
+        this.code.add(OpcodeType.LT, 0, 0);
+        break;
+      case AND:
+        this.code.add(OpcodeType.AND, 0, 0);
+        break;
+      case OR:
+        this.code.add(OpcodeType.OR, 0, 0);
+        break;
+      case NOT:
+        this.code.add(OpcodeType.NOT, 0, 0);
+        break;
+    }
   }
 
-  public void writeLabel(String label) throws IOException {
-    this.writer.write("label " + label + "\n");
+  public void writeLabel(String label) {
+    this.code.add(OpcodeType.LABEL, this.code.intern(label), 0);
   }
 
-  public void writeGoto(String label) throws IOException {
-    this.writer.write("goto " + label + "\n");
+  public void writeGoto(String label) {
+    this.code.add(OpcodeType.GOTO, this.code.intern(label), 0);
   }
 
-  public void writeIf(String label) throws IOException {
-    this.writer.write("if-goto " + label + "\n");
+  public void writeIf(String label) {
+    this.code.add(OpcodeType.IF_GOTO, this.code.intern(label), 0);
   }
 
-  public void writeCall(String name, int nArg) throws IOException {
-    this.writer.write("call " + name + " " + nArg + "\n");
+  public void writeCall(String name, int nArg) {
+    this.code.add(OpcodeType.CALL, this.code.intern(name), nArg);
   }
 
-  public void writeFunction(String name, int nLocal) throws IOException {
-    this.writer.write("function " + name + " " + nLocal + "\n");
+  public void writeFunction(String name, int nLocal) {
+    this.code.add(OpcodeType.FUNCTION, this.code.intern(name), nLocal);
   }
 
-  public void writeReturn() throws IOException {
-    this.writer.write("return\n");
+  public void writeReturn() {
+    this.code.add(OpcodeType.RETURN, 0, 0);
   }
 
-  public void writeAlloc(int size) throws IOException {
+  public void writeAlloc(int size) {
     this.writePush(SegmentType.CONST, size);
-    this.writer.write("call Memory.alloc 1\n");
+    this.code.add(OpcodeType.CALL, this.allocId, 1);
 
   }
 
-  public void writeString(String str) throws IOException {
+  public void writeString(String str) {
     this.writePush(SegmentType.CONST, str.length());
-    this.writeCall("String.new", 1);
-    for (char c : str.toCharArray()) {
-      this.writePush(SegmentType.CONST, c);
-      this.writeCall("String.appendChar", 2);
+    this.code.add(OpcodeType.CALL, this.stringNewId, 1);
+    for (int i = 0; i < str.length(); i++) {
+      this.writePush(SegmentType.CONST, str.charAt(i));
+      this.code.add(OpcodeType.CALL, this.appendCharId, 2);
 
     }
   }
@@ -18,25 +18,25 @@ public enum CommandType {
     this.cmd = cmd;
   }
 
-  public static CommandType getEnum(String str) throws Exception {
-    switch (str) {
-      case "+":
+  public static CommandType getEnum(SymbolType st) throws Exception {
+    switch (st) {
+      case PLUS:
         return ADD;
-      case "-":
+      case MINUS:
         return SUB;
-      case "*":
+      case ASTERISK:
         return MUT;
-      case "/":
+      case SLASH:
         return DIV;
-      case "=":
+      case EQ:
         return EQ;
-      case ">":
+      case GT:
         return GT;
-      case "<":
+      case LT:
         return LT;
-      case "&":
+      case AND:
         return AND;
-      case "|":
+      case OR:
         return OR;
       default:
         throw new Exception();
@@ -0,0 +1,86 @@
+package nand2tetris.utils;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+public enum KeywordType {
+  CLASS("class"),
+  CONSTRUCTOR("constructor"),
+  FUNCTION("function"),
+  METHOD("method"),
+  FIELD("field"),
+  STATIC("static"),
+  VAR("var"),
+  INT("int"),
+  CHAR("char"),
+  BOOLEAN("boolean"),
+  VOID("void"),
+  TRUE("true"),
+  FALSE("false"),
+  NULL("null"),
+  THIS("this"),
+  LET("let"),
+  DO("do"),
+  IF("if"),
+  ELSE("else"),
+  WHILE("while"),
+  RETURN("return");
+
+  private static final Map<String, KeywordType> keywordMap = new HashMap<>();
+  // keywords bucketed by their first letter, for matching raw source bytes without building a String
+  private static final KeywordType[][] initialTable = new KeywordType[26][];
+
+  static {
+    for (KeywordType kt : values()) {
+      keywordMap.put(kt.keyword, kt);
+      int initial = kt.keyword.charAt(0) - 'a';
+      KeywordType[] bucket = initialTable[initial] == null ? new KeywordType[0] : initialTable[initial];
+      bucket = Arrays.copyOf(bucket, bucket.length + 1);
+      bucket[bucket.length - 1] = kt;
+      initialTable[initial] = bucket;
+    }
+  }
+
+  private final String keyword;
+  private final byte[] bytes;
+
+  KeywordType(String keyword) {
+    this.keyword = keyword;
+    this.bytes = keyword.getBytes(StandardCharsets.US_ASCII);
+  }
+
+  public static KeywordType getEnum(String str) {
+    // null when the word is not a keyword
+    return keywordMap.get(str);
+  }
+
+  public static KeywordType getEnum(ByteBuffer buf, int start, int length) {
+    // null when the bytes [start, start + length) are not a keyword
+    int initial = buf.get(start) - 'a';
+    if (initial < 0 || initial >= initialTable.length || initialTable[initial] == null) {
+      return null;
+    }
+    for (KeywordType kt : initialTable[initial]) {
+      if (kt.bytes.length == length && matches(kt.bytes, buf, start)) {
+        return kt;
+      }
+    }
+    return null;
+  }
+
+  public String getKeyword() {
+    return this.keyword;
+  }
+
+  private static boolean matches(byte[] bytes, ByteBuffer buf, int start) {
+    for (int i = 0; i < bytes.length; i++) {
+      if (buf.get(start + i) != bytes[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
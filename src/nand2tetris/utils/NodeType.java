@@ -0,0 +1,30 @@
+package nand2tetris.utils;
+
+public enum NodeType {
+  CLASS("class"),
+  CLASS_VAR_DEC("classVarDec"),
+  SUBROUTINE_DEC("subroutineDec"),
+  PARAMETER_LIST("parameterList"),
+  SUBROUTINE_BODY("subroutineBody"),
+  VAR_DEC("varDec"),
+  STATEMENTS("statements"),
+  LET_STATEMENT("letStatement"),
+  IF_STATEMENT("ifStatement"),
+  WHILE_STATEMENT("whileStatement"),
+  DO_STATEMENT("doStatement"),
+  RETURN_STATEMENT("returnStatement"),
+  EXPRESSION("expression"),
+  TERM("term"),
+  EXPRESSION_LIST("expressionList"),
+  TOKEN("token");
+
+  private String tag;
+
+  NodeType(String tag) {
+    this.tag = tag;
+  }
+
+  public String getTag() {
+    return this.tag;
+  }
+}
@@ -0,0 +1,40 @@
+package nand2tetris.utils;
+
+public enum OpcodeType {
+  PUSH("push"),
+  POP("pop"),
+  ADD("add"),
+  SUB("sub"),
+  NEG("neg"),
+  EQ("eq"),
+  GT("gt"),
+  LT("lt"),
+  AND("and"),
+  OR("or"),
+  NOT("not"),
+  LABEL("label"),
+  GOTO("goto"),
+  IF_GOTO("if-goto"),
+  CALL("call"),
+  FUNCTION("function"),
+  RETURN("return");
+
+  String op;
+
+  OpcodeType(String op) {
+    this.op = op;
+  }
+
+  public String getOp() {
+    return this.op;
+  }
+
+  public boolean isArithmetic() {
+    return this.ordinal() >= ADD.ordinal() && this.ordinal() <= NOT.ordinal();
+  }
+
+  public boolean isNamed() {
+    // label, goto, if-goto, call and function carry an interned name
+    return this.ordinal() >= LABEL.ordinal() && this.ordinal() <= FUNCTION.ordinal();
+  }
+}
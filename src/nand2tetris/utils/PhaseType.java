@@ -0,0 +1,18 @@
+package nand2tetris.utils;
+
+public enum PhaseType {
+  READ("read"),
+  TOKENIZE("tokenize"),
+  CODEGEN("codegen"),
+  WRITE("write");
+
+  String phase;
+
+  PhaseType(String phase) {
+    this.phase = phase;
+  }
+
+  public String getPhase() {
+    return this.phase;
+  }
+}
@@ -0,0 +1,46 @@
+package nand2tetris.utils;
+
+public enum SymbolType {
+  L_BRACE('{'),
+  R_BRACE('}'),
+  L_PAREN('('),
+  R_PAREN(')'),
+  L_BRACKET('['),
+  R_BRACKET(']'),
+  DOT('.'),
+  COMMA(','),
+  SEMICOLON(';'),
+  PLUS('+'),
+  MINUS('-'),
+  ASTERISK('*'),
+  SLASH('/'),
+  AND('&'),
+  OR('|'),
+  LT('<'),
+  GT('>'),
+  EQ('='),
+  TILDE('~');
+
+  private static final SymbolType[] charTable = new SymbolType[128];
+
+  static {
+    for (SymbolType st : values()) {
+      charTable[st.symbol] = st;
+    }
+  }
+
+  private final char symbol;
+
+  SymbolType(char symbol) {
+    this.symbol = symbol;
+  }
+
+  public static SymbolType getEnum(char c) {
+    // null when the character is not a symbol
+    return c < charTable.length ? charTable[c] : null;
+  }
+
+  public char getSymbol() {
+    return this.symbol;
+  }
+}